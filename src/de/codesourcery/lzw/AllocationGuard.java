@@ -0,0 +1,133 @@
+package de.codesourcery.lzw;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures how many bytes the compressor allocates on the heap per MB of input and fails
+ * if that exceeds a budget.
+ *
+ * Usage: <code>AllocationGuard [input file]</code>
+ *
+ * Budgets (in bytes allocated per MB of input) can be set with the system properties
+ * <code>lzw.compressAllocationBudget</code> and <code>lzw.decompressAllocationBudget</code>.
+ * Without an input file, a synthetic text-like input is used.
+ */
+public class AllocationGuard
+{
+	private static final int WARMUP_ROUNDS = 20;
+	private static final int MEASURED_ROUNDS = 10;
+
+	private static final long DEFAULT_BUDGET = 1024;
+
+	private static final int SYNTHETIC_INPUT_SIZE = 4*1024*1024;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	public AllocationGuard()
+	{
+		if ( ! ( ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean ) ) {
+			throw new UnsupportedOperationException("This JVM does not support measuring thread allocations");
+		}
+		this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if ( ! threadBean.isThreadAllocatedMemorySupported() ) {
+			throw new UnsupportedOperationException("This JVM does not support measuring thread allocations");
+		}
+		threadBean.setThreadAllocatedMemoryEnabled( true );
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final byte[] input = args.length > 0 ? Files.readAllBytes( new File( args[0] ).toPath() ) : syntheticInput();
+
+		final long compressBudget = Long.getLong( "lzw.compressAllocationBudget" , DEFAULT_BUDGET );
+		final long decompressBudget = Long.getLong( "lzw.decompressAllocationBudget" , DEFAULT_BUDGET );
+
+		final AllocationGuard guard = new AllocationGuard();
+
+		boolean failed = false;
+		for ( boolean offHeap : new boolean[] { false , true } )
+		{
+			try ( LZWCompressor compressor = new LZWCompressor( offHeap ) )
+			{
+				final String engine = offHeap ? "off-heap" : "heap";
+				failed |= ! guard.check( engine , compressor , input , compressBudget , decompressBudget );
+			}
+		}
+		if ( failed ) {
+			throw new RuntimeException("Allocation budget exceeded");
+		}
+		System.out.println("All allocation budgets met");
+	}
+
+	/**
+	 * Measures allocations of one compressor.
+	 *
+	 * @return <code>true</code> if both budgets were met
+	 */
+	public boolean check(String engine,LZWCompressor compressor,byte[] input,long compressBudget,long decompressBudget)
+	{
+		final BitStream compressed = new BitStream( 1024 );
+		final byte[] decompressed = new byte[ input.length ];
+		final int[] codeWords = new int[1];
+
+		final Runnable compress = () ->
+		{
+			compressed.clear();
+			codeWords[0] = compressor.compress( input , compressed );
+		};
+		final Runnable decompress = () ->
+		{
+			compressed.reset();
+			compressor.decompress( compressed , codeWords[0] , decompressed , 0 );
+		};
+
+		// warm-up also grows all buffers to their final size
+		for ( int i = 0 ; i < WARMUP_ROUNDS ; i++ )
+		{
+			compress.run();
+			decompress.run();
+		}
+
+		final long compressAllocated = perMegabyte( measure( compress ) , input.length );
+		final long decompressAllocated = perMegabyte( measure( decompress ) , input.length );
+
+		final boolean compressOk = compressAllocated <= compressBudget;
+		final boolean decompressOk = decompressAllocated <= decompressBudget;
+		System.out.println("["+engine+"] compress: "+compressAllocated+" bytes/MB (budget: "+compressBudget+")"+( compressOk ? "" : " - FAILED" ) );
+		System.out.println("["+engine+"] decompress: "+decompressAllocated+" bytes/MB (budget: "+decompressBudget+")"+( decompressOk ? "" : " - FAILED" ) );
+		return compressOk && decompressOk;
+	}
+
+	private long measure(Runnable r)
+	{
+		final long threadId = Thread.currentThread().getId();
+		final long before = threadBean.getThreadAllocatedBytes( threadId );
+		for ( int i = 0 ; i < MEASURED_ROUNDS ; i++ ) {
+			r.run();
+		}
+		return ( threadBean.getThreadAllocatedBytes( threadId ) - before ) / MEASURED_ROUNDS;
+	}
+
+	private static long perMegabyte(long bytesAllocated,int inputSize) {
+		return (long) ( bytesAllocated / ( inputSize / ( 1024*1024d ) ) );
+	}
+
+	private static byte[] syntheticInput()
+	{
+		final String[] words = { "<div class=\"item\">" , "</div>\n" , "the " , "quick " , "brown " , "fox " , "jumps " , "over " , "lazy " , "dog " };
+		final Random rnd = new Random(0xdeadbeef);
+		final byte[] result = new byte[ SYNTHETIC_INPUT_SIZE ];
+		for ( int i = 0 ; i < result.length ; )
+		{
+			final String word = words[ rnd.nextInt( words.length ) ];
+			for ( int j = 0 ; j < word.length() && i < result.length ; j++ ) {
+				result[i++] = (byte) word.charAt(j);
+			}
+		}
+		return result;
+	}
+}
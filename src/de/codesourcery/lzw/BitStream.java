@@ -1,6 +1,7 @@
 package de.codesourcery.lzw;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.Random;
 
 public class BitStream
@@ -14,34 +15,29 @@ public class BitStream
 	private int readBit=63;
 
 	private int sizeInBits;
+	// bits written before the last reset(), they can still be read
+	private int bitsBeforeReset;
 
 	public BitStream(byte[] data, int bitsInArray)
 	{
-		final int bytesInArray = (int) Math.ceil( bitsInArray / 8f );
+		final int bytesInArray = (bitsInArray+7) / 8;
 
-		this.buffer = new long[ (int) Math.ceil( bytesInArray / 8f ) ];
-		this.sizeInBits = bitsInArray;
-
-		int byteIndex = 0;
-		int longIndex = 0;
+		// always leave room for the word currently being written to
+		this.buffer = new long[ bitsInArray/64 + 1 ];
 
-		long currentValue = 0;
-		int byteInLong = 3;
+		for ( int i = 0 ; i < bytesInArray ; i++ ) {
+			buffer[ i >>> 3 ] |= ( data[i] & 0xffL ) << ( 56 - 8*(i & 7) );
+		}
 
-		for ( int i = 0 ; i < bytesInArray ; i++ )
-		{
-			currentValue = currentValue << 8;
-			currentValue |= (data[byteIndex++] & 0xffL);
-			byteInLong--;
-			if ( byteInLong == 0 ) {
-				buffer[ longIndex++ ] = currentValue;
-			}
+		// discard any bits past the end so they don't get mixed with bits appended later on
+		final int bitsInLastWord = bitsInArray & 63;
+		if ( bitsInLastWord != 0 ) {
+			buffer[ bitsInArray/64 ] &= ~( -1L >>> bitsInLastWord );
 		}
-		buffer[ longIndex ] = currentValue;
 
 		this.sizeInBits = bitsInArray;
-		this.writePtr = longIndex;
-		this.writeBit = 63 - ( bitsInArray % 63 );
+		this.writePtr = bitsInArray/64;
+		this.writeBit = 63 - bitsInLastWord;
 	}
 
 	public byte[] getBytes(int numberOfBits)
@@ -55,45 +51,21 @@ public class BitStream
 		if ( numberOfBits > sizeInBits ) {
 			throw new IllegalArgumentException("Cannot read "+numberOfBits+" bits from buffer that contains only "+sizeInBits+" bits.");
 		}
-		final int sizeInBytes = (int) Math.ceil( numberOfBits / 8f );
+		final int sizeInBytes = (numberOfBits+7) / 8;
 		final byte[] result = new byte[ sizeInBytes  ];
 
-		int byteIndex = 0;
-		int longIndex = 0;
-
-		int bitsRemaining = numberOfBits;
-
-		int toShift = 7*8;
-
-		int byteInLong = 0;
-
-		long currentValue = buffer[ longIndex ];
-		while ( bitsRemaining >= 8 )
-		{
-			result[ byteIndex++ ] = (byte) ( (currentValue >>> toShift) & 0xFF);
-			bitsRemaining -= 8;
-
-			if ( byteInLong == 7 )
-			{
-				toShift = 7*8;
-				byteInLong = 0;
-				longIndex++;
-				if ( bitsRemaining > 0 ) {
-					currentValue = buffer[longIndex];
-				}
-			} else {
-				byteInLong++;
-				toShift -= 8;
-			}
+		for ( int i = 0 ; i < sizeInBytes ; i++ ) {
+			result[i] = (byte) ( buffer[ i >>> 3 ] >>> ( 56 - 8*(i & 7) ) );
 		}
 
-		if ( bitsRemaining > 0 )
-		{
-			final long mask = (1 << bitsRemaining+1)-1;
-			result[ byteIndex ] = (byte) ( ( buffer[longIndex] >> toShift) & mask );
+		// clear bits past the requested number of bits
+		final int bitsInLastByte = numberOfBits & 7;
+		if ( bitsInLastByte != 0 ) {
+			result[ sizeInBytes-1 ] &= 0xff << ( 8 - bitsInLastByte );
 		}
 		return result;
 	}
+
 	public byte[] getBytes()
 	{
 		return getBytes( sizeInBits );
@@ -112,6 +84,22 @@ public class BitStream
 		return sizeInBits;
 	}
 
+	/**
+	 * Returns the contents of this stream as 64-bit words, most significant bit first.
+	 *
+	 * @return copy of all words holding at least one bit, unused bits in the last word are zero
+	 * @see #write(long[], int)
+	 */
+	public long[] toLongArray()
+	{
+		final long[] result = Arrays.copyOf( buffer , (sizeInBits+63) / 64 );
+		final int bitsInLastWord = sizeInBits & 63;
+		if ( bitsInLastWord != 0 ) {
+			result[ result.length-1 ] &= ~( -1L >>> bitsInLastWord );
+		}
+		return result;
+	}
+
 	private static final int BUFFER_SIZE = 1024;
 	private static final int KB_TO_WRITE = 2048;
 	private static final int WARMUP_ROUNDS = 30;
@@ -170,6 +158,42 @@ public class BitStream
 		});
 		dataPerSecond = (KB_TO_WRITE/1024f) / (t/1000f);
 		System.out.println("\n\nRead "+KB_TO_WRITE+" in "+t+" ms ("+dataPerSecond+" MB/s)");
+
+		/*
+		 * Bulk code packing
+		 */
+		final int codeCount = KB_TO_WRITE*1024*8/12;
+		final int[] codes = new int[ codeCount ];
+		for ( int i = 0 ; i < codeCount ; i++ ) {
+			codes[i] = rnd.nextInt( 1 << 12 );
+		}
+		final int[] unpacked = new int[ codeCount ];
+		final BitStream codeBuffer = new BitStream( (KB_TO_WRITE+1)*1024 );
+
+		t = benchmark( () ->
+		{
+			codeBuffer.reset();
+			codeBuffer.writeCodes( codes , codeCount , 12 );
+		});
+		dataPerSecond = (KB_TO_WRITE/1024f) / (t/1000f);
+		System.out.println("\nBulk-wrote "+KB_TO_WRITE+" in "+t+" ms ("+dataPerSecond+" MB/s)");
+
+		t = benchmark( () ->
+		{
+			codeBuffer.reset();
+			codeBuffer.readCodes( unpacked , codeCount , 12 );
+		});
+		dataPerSecond = (KB_TO_WRITE/1024f) / (t/1000f);
+		System.out.println("\nBulk-read "+KB_TO_WRITE+" in "+t+" ms ("+dataPerSecond+" MB/s)");
+
+		codeBuffer.reset();
+		for ( int i = 0 ; i < codeCount ; i++ )
+		{
+			final int actual = codeBuffer.readInt( 12 );
+			if ( actual != codes[i] || unpacked[i] != codes[i] ) {
+				throw new RuntimeException("Bulk read error at code "+i+" , expected "+codes[i]+" , got "+actual+" / "+unpacked[i]);
+			}
+		}
 	}
 
 	protected  static final long benchmark(Runnable r)
@@ -227,7 +251,26 @@ public class BitStream
 		sizeInBits += numberOfBits;
 	}
 
+	/**
+	 * Discards all data and rewinds both read and write position.
+	 *
+	 * @see #reset()
+	 */
+	public void clear()
+	{
+		Arrays.fill( buffer , 0 , Math.max( writePtr , bitsBeforeReset/64 )+1 , 0 );
+		reset();
+		bitsBeforeReset = 0;
+	}
+
+	/**
+	 * Rewinds both read and write position but keeps the data so it can be read again.
+	 *
+	 * Writing after calling this method will merge new data with the previous contents,
+	 * use {@link #clear()} to reuse the buffer for writing.
+	 */
 	public void reset() {
+		this.bitsBeforeReset = Math.max( bitsBeforeReset , sizeInBits );
 		this.readBit = 63;
 		this.readPtr = 0;
 		this.writeBit = 63;
@@ -299,6 +342,179 @@ public class BitStream
 		return result;
 	}
 
+	/**
+	 * Appends bits from an array of 64-bit words, most significant bit first.
+	 *
+	 * @param bits
+	 * @param numberOfBits number of bits to copy, starting with the MSB of <code>bits[0]</code>
+	 * @see #toLongArray()
+	 */
+	public void write(long[] bits,int numberOfBits)
+	{
+		int writePtr = this.writePtr;
+		int bitsFree = this.writeBit+1;
+		long currentValue = buffer[ writePtr ];
+
+		final int fullWords = numberOfBits >>> 6;
+		for ( int i = 0 ; i < fullWords ; i++ )
+		{
+			final long value = bits[i];
+			buffer[ writePtr ] = currentValue | ( value >>> ( 64 - bitsFree ) );
+			writePtr++;
+			if ( writePtr == buffer.length ) {
+				resizeBuffer();
+			}
+			currentValue = bitsFree == 64 ? 0 : value << bitsFree;
+		}
+
+		final int tail = numberOfBits & 63;
+		if ( tail != 0 )
+		{
+			final long value = bits[ fullWords ] & ~( -1L >>> tail );
+			currentValue |= value >>> ( 64 - bitsFree );
+			if ( tail < bitsFree ) {
+				bitsFree -= tail;
+			}
+			else
+			{
+				buffer[ writePtr ] = currentValue;
+				writePtr++;
+				if ( writePtr == buffer.length ) {
+					resizeBuffer();
+				}
+				currentValue = value << bitsFree;
+				bitsFree = 64 - ( tail - bitsFree );
+			}
+		}
+		buffer[ writePtr ] = currentValue;
+		this.writePtr = writePtr;
+		this.writeBit = bitsFree-1;
+		sizeInBits += numberOfBits;
+	}
+
+	/**
+	 * Appends <code>count</code> values from <code>codes</code>, each truncated to
+	 * <code>width</code> bits.
+	 *
+	 * Equivalent to calling {@link #write(long, int)} for each value but packs
+	 * whole words at a time instead of looping over individual bits.
+	 *
+	 * @param codes values to write
+	 * @param count number of values to write
+	 * @param width bits per value (1...32)
+	 */
+	public void writeCodes(int[] codes,int count,int width)
+	{
+		if ( width < 1 || width > 32 ) {
+			throw new IllegalArgumentException("width must be 1...32, was: "+width);
+		}
+		final long mask = (1L << width)-1;
+
+		int writePtr = this.writePtr;
+		int bitsFree = this.writeBit+1;
+		long currentValue = buffer[ writePtr ];
+
+		for ( int i = 0 ; i < count ; i++ )
+		{
+			final long value = codes[i] & mask;
+			if ( width < bitsFree )
+			{
+				bitsFree -= width;
+				currentValue |= value << bitsFree;
+			}
+			else
+			{
+				// value straddles (or exactly fills) the current word
+				final int spill = width - bitsFree;
+				buffer[ writePtr ] = currentValue | ( value >>> spill );
+				writePtr++;
+				if ( writePtr == buffer.length ) {
+					resizeBuffer();
+				}
+				bitsFree = 64 - spill;
+				currentValue = spill == 0 ? 0 : value << bitsFree;
+			}
+		}
+		buffer[ writePtr ] = currentValue;
+		this.writePtr = writePtr;
+		this.writeBit = bitsFree-1;
+		sizeInBits += count*width;
+	}
+
+	/**
+	 * Reads <code>count</code> values of <code>width</code> bits each into <code>dst</code>.
+	 *
+	 * Equivalent to calling {@link #readInt(int)} <code>count</code> times but
+	 * unpacks whole words at a time instead of looping over individual bits.
+	 *
+	 * @param dst array to store values in
+	 * @param count number of values to read
+	 * @param width bits per value (1...32)
+	 */
+	public void readCodes(int[] dst,int count,int width)
+	{
+		final long bitOffset = readPtr*64L + ( 63 - readBit );
+		final long newOffset = readCodes( bitOffset , dst , 0 , count , width );
+		this.readPtr = (int) ( newOffset >>> 6 );
+		this.readBit = 63 - (int) ( newOffset & 63 );
+	}
+
+	/**
+	 * Reads <code>count</code> values of <code>width</code> bits each, starting
+	 * at an arbitrary bit offset.
+	 *
+	 * Does not use or change this stream's read position, so multiple threads may
+	 * call this method concurrently as long as nobody is writing to the stream.
+	 *
+	 * @param bitOffset offset (in bits, relative to the start of the stream) of the first value
+	 * @param dst array to store values in
+	 * @param dstOffset offset in <code>dst</code> of the first value
+	 * @param count number of values to read
+	 * @param width bits per value (1...32)
+	 * @return bit offset right after the last value read
+	 * @throws IllegalArgumentException if the stream holds less than <code>count</code> values at <code>bitOffset</code>
+	 */
+	public long readCodes(long bitOffset,int[] dst,int dstOffset,int count,int width)
+	{
+		if ( width < 1 || width > 32 ) {
+			throw new IllegalArgumentException("width must be 1...32, was: "+width);
+		}
+		final int readableBits = Math.max( sizeInBits , bitsBeforeReset );
+		if ( bitOffset < 0 || count < 0 || bitOffset + count * (long) width > readableBits ) {
+			throw new IllegalArgumentException("Cannot read "+count+" values of "+width+" bits at bit offset "+bitOffset+" from stream that contains only "+readableBits+" bits");
+		}
+		final long mask = (1L << width)-1;
+		final long[] buffer = this.buffer;
+
+		int readPtr = (int) ( bitOffset >>> 6 );
+		int bitsLeft = 64 - (int) ( bitOffset & 63 );
+		long currentValue = count > 0 ? buffer[ readPtr ] : 0;
+
+		final int end = dstOffset + count;
+		for ( int i = dstOffset ; i < end ; i++ )
+		{
+			if ( width < bitsLeft )
+			{
+				bitsLeft -= width;
+				dst[i] = (int) ( ( currentValue >>> bitsLeft ) & mask );
+			}
+			else
+			{
+				// value straddles (or exactly ends) the current word
+				final int spill = width - bitsLeft;
+				long value = ( currentValue & ( (1L << bitsLeft)-1 ) ) << spill;
+				readPtr++;
+				bitsLeft = 64 - spill;
+				currentValue = buffer[ readPtr ];
+				if ( spill != 0 ) {
+					value |= currentValue >>> bitsLeft;
+				}
+				dst[i] = (int) value;
+			}
+		}
+		return readPtr*64L + ( 64 - bitsLeft );
+	}
+
 	private void resizeBuffer()
 	{
 		final long[] newBuffer = new long[ buffer.length * 2];
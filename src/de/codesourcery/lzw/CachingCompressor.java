@@ -0,0 +1,293 @@
+package de.codesourcery.lzw;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compressor that remembers the output for recently seen inputs.
+ *
+ * Entries are keyed by the input's length and two seeded 64-bit hashes and evicted in
+ * LRU order once the total size of all cached entries exceeds a configurable number of bytes.
+ * Inputs are not kept, so the budget is spent on compressed data only.
+ *
+ * The hashes are not collision resistant, colliding inputs can be crafted easily. A hit is
+ * therefore only served after the cached data has been decompressed and compared with the
+ * input, which is still much cheaper than compressing it again.
+ *
+ * This class is thread-safe, calls to the wrapped compressor are serialized.
+ */
+public class CachingCompressor implements ICompressor
+{
+	// rough per-entry bookkeeping overhead (map node, key, entry object, array header)
+	private static final int ENTRY_OVERHEAD = 128;
+
+	static final long SEED1 = 0;
+	static final long SEED2 = 0x61C8864680B583EBL;
+
+	static final long PRIME1 = 0x9E3779B185EBCA87L;
+	static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	static final long PRIME3 = 0x165667B19E3779F9L;
+	static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	protected static final class CacheKey
+	{
+		private final int length;
+		private final long hash1;
+		private final long hash2;
+
+		public CacheKey(byte[] input)
+		{
+			this.length = input.length;
+			this.hash1 = hash( input , SEED1 );
+			this.hash2 = hash( input , SEED2 );
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( obj instanceof CacheKey )
+			{
+				final CacheKey other = (CacheKey) obj;
+				return length == other.length && hash1 == other.hash1 && hash2 == other.hash2;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) hash1;
+		}
+	}
+
+	protected static final class CacheEntry
+	{
+		public final long[] bits;
+		public final int numberOfBits;
+		public final int codeWords;
+
+		public CacheEntry(long[] bits,int numberOfBits,int codeWords)
+		{
+			this.bits = bits;
+			this.numberOfBits = numberOfBits;
+			this.codeWords = codeWords;
+		}
+
+		public long sizeInBytes() {
+			return ENTRY_OVERHEAD + bits.length*8L;
+		}
+	}
+
+	private final ICompressor delegate;
+	private final long maxSizeInBytes;
+
+	// guards the delegate and scratch
+	private final Object compressorLock = new Object();
+	private final BitStream scratch = new BitStream(1024);
+
+	private final LinkedHashMap<CacheKey,CacheEntry> cache = new LinkedHashMap<>(16,0.75f,true);
+
+	private long sizeInBytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long collisions;
+
+	public CachingCompressor(ICompressor delegate,long maxSizeInBytes)
+	{
+		if ( maxSizeInBytes < 0 ) {
+			throw new IllegalArgumentException("maxSizeInBytes must be >= 0");
+		}
+		this.delegate = delegate;
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	@Override
+	public int compress(byte[] in, BitStream out)
+	{
+		final CacheKey key = new CacheKey( in );
+
+		final CacheEntry existing;
+		synchronized( cache ) {
+			existing = cache.get( key );
+		}
+
+		final boolean hit = existing != null && matches( existing , in );
+		synchronized( cache )
+		{
+			if ( hit ) {
+				hits++;
+			} else {
+				misses++;
+				if ( existing != null ) {
+					collisions++;
+				}
+			}
+		}
+		if ( hit )
+		{
+			out.write( existing.bits , existing.numberOfBits );
+			return existing.codeWords;
+		}
+
+		final CacheEntry entry;
+		synchronized( compressorLock )
+		{
+			scratch.clear();
+			final int codeWords = delegate.compress( in , scratch );
+			entry = new CacheEntry( scratch.toLongArray() , scratch.getSizeInBits() , codeWords );
+		}
+		out.write( entry.bits , entry.numberOfBits );
+
+		if ( entry.sizeInBytes() <= maxSizeInBytes )
+		{
+			synchronized( cache )
+			{
+				final CacheEntry previous = cache.put( key , entry );
+				if ( previous != null ) {
+					sizeInBytes -= previous.sizeInBytes();
+				}
+				sizeInBytes += entry.sizeInBytes();
+				evict();
+			}
+		}
+		return entry.codeWords;
+	}
+
+	private boolean matches(CacheEntry entry,byte[] in)
+	{
+		final byte[] decompressed;
+		synchronized( compressorLock )
+		{
+			scratch.clear();
+			scratch.write( entry.bits , entry.numberOfBits );
+			scratch.reset();
+			decompressed = delegate.decompress( scratch , entry.codeWords );
+		}
+		return Arrays.equals( decompressed , in );
+	}
+
+	private void evict()
+	{
+		final Iterator<Map.Entry<CacheKey,CacheEntry>> it = cache.entrySet().iterator();
+		while ( sizeInBytes > maxSizeInBytes && it.hasNext() )
+		{
+			sizeInBytes -= it.next().getValue().sizeInBytes();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	@Override
+	public byte[] decompress(BitStream in, int numberOfCodeWords)
+	{
+		synchronized( compressorLock ) {
+			return delegate.decompress( in , numberOfCodeWords );
+		}
+	}
+
+	public void clear()
+	{
+		synchronized( cache )
+		{
+			cache.clear();
+			sizeInBytes = 0;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized( cache ) {
+			return hits;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized( cache ) {
+			return misses;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized( cache ) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * @return number of lookups that found an entry for a different input with the same key
+	 */
+	public long getCollisionCount() {
+		synchronized( cache ) {
+			return collisions;
+		}
+	}
+
+	public long getSizeInBytes() {
+		synchronized( cache ) {
+			return sizeInBytes;
+		}
+	}
+
+	public int getEntryCount() {
+		synchronized( cache ) {
+			return cache.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized( cache ) {
+			return "CachingCompressor[ entries: "+cache.size()+" , size: "+sizeInBytes+"/"+maxSizeInBytes+" bytes , hits: "+hits+" , misses: "+misses+" , evictions: "+evictions+" , collisions: "+collisions+" ]";
+		}
+	}
+
+	/**
+	 * 64-bit hash of a byte array (xxHash64-style mixing, processes 8 bytes at a time).
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static long hash(byte[] data) {
+		return hash( data , SEED1 );
+	}
+
+	/**
+	 * Seeded variant of {@link #hash(byte[])}, different seeds yield unrelated hashes.
+	 *
+	 * @param data
+	 * @param seed
+	 * @return
+	 */
+	public static long hash(byte[] data,long seed)
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( data ).order( ByteOrder.LITTLE_ENDIAN );
+
+		long hash = seed + PRIME5 + data.length;
+
+		int i = 0;
+		for ( final int end = data.length - 7 ; i < end ; i += 8 )
+		{
+			long k = buffer.getLong( i ) * PRIME2;
+			k = Long.rotateLeft( k , 31 ) * PRIME1;
+			hash ^= k;
+			hash = Long.rotateLeft( hash , 27 ) * PRIME1 + PRIME4;
+		}
+		for ( ; i < data.length ; i++ )
+		{
+			hash ^= ( data[i] & 0xffL ) * PRIME5;
+			hash = Long.rotateLeft( hash , 11 ) * PRIME1;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+}
@@ -17,7 +17,6 @@ public final class FastIntList {
 	public void resize()
 	{
 		final int newSize = this.maxSize*2;
-		System.out.println("FastIntList resize: "+this.maxSize+" -> "+newSize);
 		final int[] data = new int[ newSize ];
 		System.arraycopy( this.data , 0 , data , 0 , this.data.length );
 		this.data = data;
@@ -0,0 +1,32 @@
+package de.codesourcery.lzw;
+
+public interface IPrefixTree extends AutoCloseable {
+
+	public void put(byte[] pattern,int nodeValue);
+
+	public void put(byte[] pattern,int len, int nodeValue);
+
+	/**
+	 *
+	 * @param pattern
+	 * @return value associated with the pattern or -1
+	 */
+	public int lookup(byte[] pattern);
+
+	/**
+	 *
+	 * @param pattern
+	 * @param len
+	 * @return value associated with the first <code>len</code> bytes of the pattern or -1
+	 */
+	public int lookup(byte[] pattern,int len);
+
+	public void clear();
+
+	/**
+	 * Releases any resources held by this tree, using it afterwards is an error.
+	 */
+	@Override
+	public default void close() {
+	}
+}
@@ -0,0 +1,279 @@
+package de.codesourcery.lzw;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads and writes {@link LZWFrame}s using an {@link AsynchronousFileChannel}.
+ *
+ * Every call to {@link #write(ByteBuffer, Object, CompletionHandler)} compresses its input into a
+ * single frame and reserves space for it at the end of the file before issuing
+ * the write, so any number of writes may be in flight at the same time.
+ *
+ * Compression and decompression share one {@link LZWCompressor} and are serialized on a private lock.
+ * Writes compress on the calling thread. Reads decompress on an executor, so the channel's
+ * I/O threads never wait for the lock or spend time decoding.
+ */
+public class LZWAsynchronousFileChannel implements Closeable
+{
+	private final AsynchronousFileChannel channel;
+	private final LZWCompressor compressor;
+	private final int maxFrameLength;
+	private final Executor decodeExecutor;
+
+	// guards the compressor and scratch
+	private final Object compressorLock = new Object();
+	private final BitStream scratch = new BitStream(1024);
+
+	private final AtomicLong writePosition;
+
+	/**
+	 * Result of {@link LZWAsynchronousFileChannel#read(long, Object, CompletionHandler)}.
+	 */
+	public static final class Block
+	{
+		/**
+		 * Decompressed data.
+		 */
+		public final ByteBuffer data;
+
+		/**
+		 * File position of the next frame.
+		 */
+		public final long nextPosition;
+
+		public Block(ByteBuffer data, long nextPosition)
+		{
+			this.data = data;
+			this.nextPosition = nextPosition;
+		}
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * @param compressor
+	 * @param writePosition file position the first frame will be written to
+	 */
+	public LZWAsynchronousFileChannel(AsynchronousFileChannel channel,LZWCompressor compressor,long writePosition) {
+		this(channel,compressor,writePosition,LZWFrame.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * @param compressor
+	 * @param writePosition file position the first frame will be written to
+	 * @param maxFrameLength largest uncompressed frame length {@link #read(long, Object, CompletionHandler)} accepts,
+	 * bigger frames are rejected as corrupt
+	 */
+	public LZWAsynchronousFileChannel(AsynchronousFileChannel channel,LZWCompressor compressor,long writePosition,int maxFrameLength) {
+		this(channel,compressor,writePosition,maxFrameLength,ForkJoinPool.commonPool());
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * @param compressor
+	 * @param writePosition file position the first frame will be written to
+	 * @param maxFrameLength largest uncompressed frame length {@link #read(long, Object, CompletionHandler)} accepts,
+	 * bigger frames are rejected as corrupt
+	 * @param decodeExecutor executor frames are decompressed on, read completion handlers get invoked on it as well
+	 */
+	public LZWAsynchronousFileChannel(AsynchronousFileChannel channel,LZWCompressor compressor,long writePosition,int maxFrameLength,Executor decodeExecutor)
+	{
+		this.channel = channel;
+		this.compressor = compressor;
+		this.writePosition = new AtomicLong( writePosition );
+		this.maxFrameLength = LZWFrame.checkMaxFrameLength( maxFrameLength );
+		this.decodeExecutor = decodeExecutor;
+	}
+
+	/**
+	 * Compresses all remaining bytes of a buffer and appends them as one frame.
+	 *
+	 * The input buffer is consumed before this method returns and may be reused right away.
+	 *
+	 * @param src
+	 * @param attachment
+	 * @param handler invoked with the number of (uncompressed) bytes written once the frame is on disk
+	 * @throws IllegalArgumentException if the buffer holds more than {@link LZWFrame#MAX_FRAME_LENGTH} bytes
+	 */
+	public <A> void write(ByteBuffer src,A attachment,CompletionHandler<Integer,? super A> handler)
+	{
+		final int length = src.remaining();
+		if ( length > LZWFrame.MAX_FRAME_LENGTH ) {
+			throw new IllegalArgumentException("Cannot write "+length+" bytes, the maximum frame length is "+LZWFrame.MAX_FRAME_LENGTH+" bytes");
+		}
+		final byte[] data = new byte[ length ];
+		src.get( data );
+
+		final ByteBuffer frame;
+		synchronized( compressorLock ) {
+			frame = LZWFrame.encode( compressor , data , 0 , length , scratch );
+		}
+
+		final long position = writePosition.getAndAdd( frame.remaining() );
+		writeFully( frame , position , new CompletionHandler<Integer,Void>()
+		{
+			@Override
+			public void completed(Integer result, Void unused) {
+				handler.completed( length , attachment );
+			}
+
+			@Override
+			public void failed(Throwable exc, Void unused) {
+				handler.failed( exc , attachment );
+			}
+		});
+	}
+
+	private void writeFully(ByteBuffer buffer,long position,CompletionHandler<Integer,Void> handler)
+	{
+		channel.write( buffer , position , null , new CompletionHandler<Integer,Void>()
+		{
+			@Override
+			public void completed(Integer written, Void unused)
+			{
+				if ( buffer.hasRemaining() ) {
+					channel.write( buffer , position + buffer.position() , null , this );
+				} else {
+					handler.completed( buffer.position() , null );
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void unused) {
+				handler.failed( exc , null );
+			}
+		});
+	}
+
+	/**
+	 * Reads and decompresses the frame at a given file position.
+	 *
+	 * @param position
+	 * @param attachment
+	 * @param handler invoked with the decompressed data or <code>null</code> if <code>position</code> is at the end of the file.
+	 * Invoked on the decode executor once a frame has been read
+	 */
+	public <A> void read(long position,A attachment,CompletionHandler<Block,? super A> handler)
+	{
+		final ByteBuffer header = ByteBuffer.allocate( LZWFrame.HEADER_SIZE );
+		readFully( header , position , true , new CompletionHandler<Boolean,Void>()
+		{
+			@Override
+			public void completed(Boolean eof, Void unused)
+			{
+				if ( eof ) {
+					handler.completed( null , attachment );
+					return;
+				}
+				header.flip();
+
+				final ByteBuffer payload;
+				try {
+					payload = ByteBuffer.allocate( LZWFrame.payloadSize( header , compressor , maxFrameLength ) );
+				} catch (IOException e) {
+					handler.failed( e , attachment );
+					return;
+				}
+
+				readFully( payload , position + LZWFrame.HEADER_SIZE , false , new CompletionHandler<Boolean,Void>()
+				{
+					@Override
+					public void completed(Boolean unusedEof, Void unused)
+					{
+						payload.flip();
+						try {
+							decodeExecutor.execute( () -> decode( header , payload , position , attachment , handler ) );
+						} catch(RuntimeException e) {
+							handler.failed( e , attachment );
+						}
+					}
+
+					@Override
+					public void failed(Throwable exc, Void unused) {
+						handler.failed( exc , attachment );
+					}
+				});
+			}
+
+			@Override
+			public void failed(Throwable exc, Void unused) {
+				handler.failed( exc , attachment );
+			}
+		});
+	}
+
+	private <A> void decode(ByteBuffer header,ByteBuffer payload,long position,A attachment,CompletionHandler<Block,? super A> handler)
+	{
+		final byte[] data;
+		try
+		{
+			synchronized( compressorLock ) {
+				data = LZWFrame.decode( compressor , header , payload );
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			handler.failed( e , attachment );
+			return;
+		}
+		handler.completed( new Block( ByteBuffer.wrap( data ) , position + LZWFrame.HEADER_SIZE + payload.limit() ) , attachment );
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 * @param position
+	 * @param eofAllowed whether hitting the end of the file before reading anything is OK
+	 * @param handler invoked with <code>true</code> if the end of the file has been reached before reading anything
+	 */
+	private void readFully(ByteBuffer buffer,long position,boolean eofAllowed,CompletionHandler<Boolean,Void> handler)
+	{
+		channel.read( buffer , position , null , new CompletionHandler<Integer,Void>()
+		{
+			@Override
+			public void completed(Integer read, Void unused)
+			{
+				if ( read == -1 )
+				{
+					if ( eofAllowed && buffer.position() == 0 ) {
+						handler.completed( true , null );
+					} else {
+						handler.failed( new EOFException("Premature end of file at position "+( position + buffer.position() ) ) , null );
+					}
+				}
+				else if ( buffer.hasRemaining() ) {
+					channel.read( buffer , position + buffer.position() , null , this );
+				} else {
+					handler.completed( false , null );
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void unused) {
+				handler.failed( exc , null );
+			}
+		});
+	}
+
+	/**
+	 * @return file position the next frame will be written to
+	 */
+	public long getWritePosition() {
+		return writePosition.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -4,72 +4,107 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
-public class LZWCompressor implements ICompressor
+public class LZWCompressor implements ICompressor, AutoCloseable
 {
 	protected static final int WARMUP_ROUNDS = 20;
 
 	protected static final int BITS_PER_ENTRY = 12;
 
-	protected static final class TableEntry
-	{
-		public final byte[] pattern;
+	protected static final int TABLE_SIZE = 1 << BITS_PER_ENTRY;
 
-		public TableEntry(byte[] pattern,int lengthInBytes)
-		{
-			this.pattern = new byte[ lengthInBytes ];
-			System.arraycopy( pattern , 0 , this.pattern , 0 , lengthInBytes );
-		}
+	public static final int MIN_BITS_PER_CODE_WORD = 9;
+	public static final int MAX_BITS_PER_CODE_WORD = 16;
 
-		private TableEntry(byte[] pattern) {
-			this.pattern = pattern;
-		}
+	private final int bitsPerEntry;
+	private final int tableSize;
 
-		public void writePattern(BitStream out) {
-			for ( int i = 0 ; i < pattern.length ; i++ ) {
-				out.write( pattern[i] , 8 );
-			}
-		}
+	// decoder state: dictionary entries are (offset,length) pairs pointing
+	// into the output written so far
+	private final int[] entryOffsets;
+	private final int[] entryLengths;
 
-		public byte firstByte() {
-			return pattern[0];
-		}
+	private int[] codes = new int[ 1024 ];
 
-		public boolean matches(byte[] pattern,final int patternLength)
-		{
-			if ( this.pattern.length == patternLength )
-			{
-				for ( int i = 0 ; i < patternLength ; i++ ) {
-					if ( this.pattern[i] != pattern[i] ) {
-						return false;
-					}
-				}
-				return true;
-			}
-			return false;
-		}
+	// compressor state, created on first use so instances that only decompress stay small
+	private final boolean offHeap;
+	private LZWEncoder encoder;
+
+	// bytes per window sampled by estimateRatio(), roughly one dictionary generation for text
+	private static final int ESTIMATE_WINDOW_SIZE = 64*1024;
+
+	/**
+	 * Result of {@link LZWCompressor#estimateRatio(byte[], int)}.
+	 */
+	public static final class Estimate
+	{
+		/**
+		 * Predicted compressed size divided by uncompressed size.
+		 */
+		public final float ratio;
 
-		public TableEntry newEntry(byte nextChar) {
-			final byte[] buffer = new byte[ this.pattern.length + 1 ];
-			System.arraycopy( this.pattern , 0 , buffer , 0 , this.pattern.length );
-			buffer[ buffer.length -1 ] = nextChar;
-			return new TableEntry( buffer );
+		/**
+		 * Heuristic confidence in the prediction, between 0 (guess) and 1 (exact).
+		 */
+		public final float confidence;
+
+		public final int bytesSampled;
+
+		public Estimate(float ratio,float confidence,int bytesSampled)
+		{
+			this.ratio = ratio;
+			this.confidence = confidence;
+			this.bytesSampled = bytesSampled;
 		}
 
 		@Override
 		public String toString() {
-			return new String( this.pattern );
+			return "Estimate[ ratio: "+ratio+" , confidence: "+confidence+" , sampled: "+bytesSampled+" bytes ]";
 		}
 	}
 
-	private TableEntry[] table = new TableEntry[ 1 << BITS_PER_ENTRY ];
+	public LZWCompressor() {
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param offHeap whether to keep the compression dictionary in native memory, callers
+	 * must invoke {@link #close()} when done
+	 */
+	public LZWCompressor(boolean offHeap) {
+		this(offHeap,BITS_PER_ENTRY);
+	}
 
-	private final PrefixTree tree = new PrefixTree(8192);
+	/**
+	 *
+	 * @param offHeap whether to keep the compression dictionary in native memory, callers
+	 * must invoke {@link #close()} when done
+	 * @param bitsPerCodeWord code word width, between {@link #MIN_BITS_PER_CODE_WORD} and {@link #MAX_BITS_PER_CODE_WORD}.
+	 * Wider code words mean a bigger dictionary that gets reset less often.
+	 */
+	public LZWCompressor(boolean offHeap,int bitsPerCodeWord)
+	{
+		if ( bitsPerCodeWord < MIN_BITS_PER_CODE_WORD || bitsPerCodeWord > MAX_BITS_PER_CODE_WORD ) {
+			throw new IllegalArgumentException("Bits per code word must be between "+MIN_BITS_PER_CODE_WORD+" and "+MAX_BITS_PER_CODE_WORD+", got "+bitsPerCodeWord);
+		}
+		this.bitsPerEntry = bitsPerCodeWord;
+		this.tableSize = 1 << bitsPerCodeWord;
+		this.entryOffsets = new int[ tableSize ];
+		this.entryLengths = new int[ tableSize ];
+		this.offHeap = offHeap;
+	}
 
-	private int findTableEntry(byte[] patternBuffer,int patternPtr)
+	private LZWEncoder encoder()
 	{
-		return tree.lookup( patternBuffer , patternPtr );
+		if ( encoder == null ) {
+			encoder = new LZWEncoder( offHeap , bitsPerEntry );
+		}
+		return encoder;
 	}
 
 	public static void main(String[] args) throws IOException
@@ -148,112 +183,442 @@ public class LZWCompressor implements ICompressor
 	@Override
 	public int compress(byte[] in, BitStream out)
 	{
-		int codeWords = 0;
-		if ( in.length == 0 ) {
-			return codeWords;
-		}
+		return compress( in , out , null );
+	}
 
-		clearDictionary();
+	/**
+	 * Compresses data while recording dictionary reset points.
+	 *
+	 * @param in
+	 * @param out
+	 * @param resetIndex index to populate (previous contents are discarded), may be <code>null</code>
+	 * @return number of code words
+	 * @see #decompress(BitStream, ResetIndex, ForkJoinPool)
+	 */
+	public int compress(byte[] in, BitStream out,ResetIndex resetIndex)
+	{
+		return compress( in , 0 , in.length , out , resetIndex );
+	}
 
-		final byte[] patternBuffer = new byte[4096];
-		int patternPtr = 0;
+	/**
+	 * Compresses part of an array.
+	 *
+	 * @param in
+	 * @param offset offset of first byte to compress
+	 * @param length number of bytes to compress
+	 * @param out
+	 * @param resetIndex index to populate (previous contents are discarded), may be <code>null</code>. Output offsets are relative to <code>offset</code>
+	 * @return number of code words
+	 */
+	public int compress(byte[] in,int offset,int length,BitStream out,ResetIndex resetIndex)
+	{
+		final long startBitOffset = out.getSizeInBits();
+		if ( resetIndex != null ) {
+			resetIndex.start( startBitOffset );
+		}
 
-		int tableInsertPtr = 256;
+		if ( length == 0 ) {
+			return 0;
+		}
 
-		int previousIdx = -1;
-		patternPtr = 0;
+		final LZWEncoder encoder = encoder();
+		encoder.clear();
+		final int codeWords = encoder.encode( in , offset , length , out , resetIndex ) + encoder.flush( out );
 
-		for ( int index = 0 ; index < in.length ; index++ )
-		{
-			final byte current = in[index];
-			patternBuffer[patternPtr++] = current;
+		if ( resetIndex != null ) {
+			resetIndex.finish( codeWords , length );
+		}
+		return codeWords;
+	}
 
-			final int existingIndex = findTableEntry(patternBuffer,patternPtr);
-			if ( existingIndex == -1 )
-			{
-				if ( tableInsertPtr == table.length ) {
-					clearDictionary();
-					tableInsertPtr = 256;
-				}
+	/**
+	 * Estimates how well data compresses without actually compressing all of it.
+	 *
+	 * Runs the dictionary over evenly spaced windows (counting code words but not emitting
+	 * any bits) so the cost is proportional to <code>sampleBudget</code> instead of the input size.
+	 * Each window starts with an empty dictionary, so the estimate tends to be slightly pessimistic.
+	 * Inputs no larger than <code>sampleBudget</code> are measured exactly, with a confidence of 1.
+	 *
+	 * @param in
+	 * @param sampleBudget maximum number of input bytes to look at
+	 * @return
+	 */
+	public Estimate estimateRatio(byte[] in,int sampleBudget)
+	{
+		return estimateRatio( ByteBuffer.wrap( in ) , sampleBudget );
+	}
 
-				table[tableInsertPtr] = new TableEntry( patternBuffer,patternPtr );
-				tree.put( patternBuffer , patternPtr , tableInsertPtr );
+	/**
+	 * Estimates how well the remaining bytes of a buffer compress.
+	 *
+	 * The buffer's position is not changed.
+	 *
+	 * @param in
+	 * @param sampleBudget maximum number of input bytes to look at
+	 * @return
+	 * @see #estimateRatio(byte[], int)
+	 */
+	public Estimate estimateRatio(ByteBuffer in,int sampleBudget)
+	{
+		if ( sampleBudget < 1 ) {
+			throw new IllegalArgumentException("sampleBudget must be >= 1");
+		}
 
-				out.write( previousIdx , BITS_PER_ENTRY );
-				codeWords++;
-				tableInsertPtr++;
+		final int length = in.remaining();
+		if ( length == 0 ) {
+			return new Estimate( 1f , 1f , 0 );
+		}
 
-				patternBuffer[0] = current;
-				previousIdx = current & 0x000000ff;
-				patternPtr=1;
-			}
-			else
-			{
-				previousIdx = existingIndex;
+		if ( sampleBudget >= length )
+		{
+			// everything fits into the budget, count exactly what compress() would produce
+			final int codeWords;
+			if ( in.hasArray() ) {
+				codeWords = countCodeWords( in.array() , in.arrayOffset() + in.position() , length );
+			} else {
+				final byte[] copy = new byte[ length ];
+				in.duplicate().get( copy );
+				codeWords = countCodeWords( copy , 0 , length );
 			}
+			return new Estimate( (float) ( codeWords * bitsPerEntry / ( length * 8d ) ) , 1f , length );
 		}
-		out.write( previousIdx , BITS_PER_ENTRY );
-		codeWords++;
 
-		return codeWords;
-	}
+		final int windowSize = Math.min( sampleBudget , ESTIMATE_WINDOW_SIZE );
+		final int windowCount = Math.max( 1 , sampleBudget / windowSize );
+		final byte[] window = new byte[ windowSize ];
 
-	private void clearDictionary()
-	{
-		table = new TableEntry[ 1 << BITS_PER_ENTRY ];
-		tree.clear();
-		for ( int i = 0 ; i < 256; i++ )
+		double sum = 0;
+		double sumOfSquares = 0;
+		long totalCodeWords = 0;
+		for ( int i = 0 ; i < windowCount ; i++ )
+		{
+			final int start = windowCount == 1 ? (length - windowSize) / 2 : (int) ( (long) (length - windowSize) * i / ( windowCount - 1 ) );
+
+			final ByteBuffer src = in.duplicate();
+			src.position( in.position() + start );
+			src.get( window , 0 , windowSize );
+			final int codeWords = countCodeWords( window , 0 , windowSize );
+			final double ratio = codeWords * bitsPerEntry / ( windowSize * 8d );
+			sum += ratio;
+			sumOfSquares += ratio * ratio;
+			totalCodeWords += codeWords;
+		}
+
+		final int bytesSampled = windowCount * windowSize;
+		final float ratio = (float) ( totalCodeWords * bitsPerEntry / ( bytesSampled * 8d ) );
+
+		final float coverage = bytesSampled / (float) length;
+		final float dispersion;
+		if ( windowCount > 1 )
 		{
-			final byte[] array = new byte[] { (byte) i };
-			table[i] = new TableEntry( array , 1 );
-			tree.put( array , i );
+			final double mean = sum / windowCount;
+			final double variance = Math.max( 0 , sumOfSquares / windowCount - mean * mean );
+			final double standardError = Math.sqrt( variance / windowCount );
+			dispersion = (float) Math.max( 0 , 1 - 2 * standardError / mean );
+		} else {
+			dispersion = 0.5f;
 		}
+		final float confidence = Math.min( 1f , coverage + ( 1 - coverage ) * dispersion );
+		return new Estimate( ratio , confidence , bytesSampled );
+	}
+
+	/**
+	 * Runs the compression dictionary without emitting any output.
+	 *
+	 * @return number of code words {@link #compress(byte[], BitStream)} would produce
+	 */
+	private int countCodeWords(byte[] in,int offset,int length)
+	{
+		final LZWEncoder encoder = encoder();
+		encoder.clear();
+		return encoder.encode( in , offset , length , null , null ) + encoder.flush( null );
 	}
 
 	@Override
 	public byte[] decompress(BitStream in,int numberOfCodeWords)
 	{
-		final BitStream out = new BitStream( 1 + (numberOfCodeWords*BITS_PER_ENTRY) / 8 );
+		if ( numberOfCodeWords == 0 ) {
+			return new byte[0];
+		}
+
+		readCodes( in , numberOfCodeWords );
+
+		final byte[] out = new byte[ decompressedSize( codes , numberOfCodeWords ) ];
+		decompress( codes , numberOfCodeWords , out , 0 );
+		return out;
+	}
+
+	/**
+	 * Decompresses into an existing array.
+	 *
+	 * Unlike {@link #decompress(BitStream, int)} this method does not allocate
+	 * once the internal code word buffer has grown large enough.
+	 *
+	 * @param in
+	 * @param numberOfCodeWords
+	 * @param out
+	 * @param offset
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the array is too small or the input is corrupt
+	 */
+	public int decompress(BitStream in,int numberOfCodeWords,byte[] out,int offset)
+	{
+		readCodes( in , numberOfCodeWords );
+
+		final int size = decompressedSize( codes , numberOfCodeWords );
+		if ( out.length - offset < size ) {
+			throw new IllegalArgumentException("Output array too small, need "+size+" bytes but only "+(out.length - offset)+" are available");
+		}
+		return decompress( codes , numberOfCodeWords , out , offset );
+	}
+
+	private void readCodes(BitStream in,int numberOfCodeWords)
+	{
+		if ( codes.length < numberOfCodeWords ) {
+			codes = new int[ numberOfCodeWords ];
+		}
+		in.readCodes( codes , numberOfCodeWords , bitsPerEntry );
+	}
 
+	/**
+	 * Calculates the number of bytes a sequence of code words decompresses to.
+	 *
+	 * Only tracks the length of each dictionary entry, no data is being written.
+	 *
+	 * @param codes
+	 * @param numberOfCodeWords
+	 * @return
+	 */
+	public int decompressedSize(int[] codes,int numberOfCodeWords)
+	{
 		if ( numberOfCodeWords == 0 ) {
-			return out.getBytes();
+			return 0;
+		}
+
+		final int[] entryLengths = this.entryLengths;
+
+		int last = codes[0];
+		if ( last > 255 ) {
+			throw new IllegalArgumentException("Corrupt input, first code word is "+last);
+		}
+		int lastLength = 1;
+		int size = 1;
+		int tablePtr = 256;
+
+		for ( int index = 1 ; index < numberOfCodeWords ; index++ )
+		{
+			final int next = codes[index];
+			if ( tablePtr == tableSize ) {
+				tablePtr = 256;
+			}
+			entryLengths[ tablePtr++ ] = lastLength+1;
+
+			if ( next < 256 ) {
+				lastLength = 1;
+			}
+			else if ( next < tablePtr ) {
+				lastLength = entryLengths[ next ];
+			} else {
+				throw new IllegalArgumentException("Corrupt input, code word "+index+" refers to undefined entry "+next);
+			}
+			size += lastLength;
 		}
+		return size;
+	}
 
-		clearDictionary();
+	/**
+	 * Decompresses a sequence of code words.
+	 *
+	 * @param codes
+	 * @param numberOfCodeWords
+	 * @param out array to write to, must have room for at least {@link #decompressedSize(int[], int)} bytes
+	 * @param offset offset in output array to start writing at
+	 * @return number of bytes written
+	 */
+	public int decompress(int[] codes,int numberOfCodeWords,byte[] out,int offset)
+	{
+		if ( numberOfCodeWords == 0 ) {
+			return 0;
+		}
 
-		int last = in.readInt(BITS_PER_ENTRY);
+		final int first = codes[0];
+		if ( first > 255 ) {
+			throw new IllegalArgumentException("Corrupt input, first code word is "+first);
+		}
+		out[ offset ] = (byte) first;
 
-		out.write( last , 8 );
+		return decode( codes , 1 , numberOfCodeWords , out , offset , 1 , entryOffsets , entryLengths , tableSize ) - offset;
+	}
 
+	/**
+	 * Decodes a range of code words following a freshly cleared dictionary.
+	 *
+	 * @param codes
+	 * @param start index of first code word to decode
+	 * @param end index of the code word after the last one to decode
+	 * @param out
+	 * @param lastOffset offset of the string that was decoded right before <code>start</code>, it must be immediately followed by <code>start</code>'s string
+	 * @param lastLength length of the string that was decoded right before <code>start</code>
+	 * @param entryOffsets
+	 * @param entryLengths
+	 * @param tableSize
+	 * @return offset right after the last byte written
+	 */
+	private static int decode(int[] codes,int start,int end,byte[] out,int lastOffset,int lastLength,int[] entryOffsets,int[] entryLengths,int tableSize)
+	{
+		int writePtr = lastOffset + lastLength;
 		int tablePtr = 256;
 
-		for ( int index = 0 ; index < numberOfCodeWords-1 ; index++ )
+		for ( int index = start ; index < end ; index++ )
 		{
-			final int next = in.readInt( BITS_PER_ENTRY );
+			final int next = codes[index];
+
+			if ( tablePtr == tableSize ) {
+				tablePtr = 256;
+			}
 
-			final TableEntry existing = table[ next ];
-			if ( existing != null )
+			/*
+			 * New entry is string(last) + first byte of string(next). Since string(next)
+			 * is about to be written right behind string(last), the entry's
+			 * contents are exactly out[ lastOffset , lastOffset+lastLength ].
+			 */
+			entryOffsets[ tablePtr ] = lastOffset;
+			entryLengths[ tablePtr ] = lastLength+1;
+			tablePtr++;
+
+			final int length;
+			if ( next < 256 )
+			{
+				length = 1;
+				out[ writePtr ] = (byte) next;
+			}
+			else if ( next < tablePtr-1 )
 			{
-				final TableEntry newEntry = table[ last ].newEntry( table[ next ].firstByte() );
+				length = entryLengths[ next ];
+				System.arraycopy( out , entryOffsets[ next ] , out , writePtr , length );
+			}
+			else if ( next == tablePtr-1 )
+			{
+				// entry we just created, its last byte is the one we're about to write
+				length = lastLength+1;
+				System.arraycopy( out , lastOffset , out , writePtr , lastLength );
+				out[ writePtr + lastLength ] = out[ lastOffset ];
+			} else {
+				throw new IllegalArgumentException("Corrupt input, code word "+index+" refers to undefined entry "+next);
+			}
+			lastOffset = writePtr;
+			lastLength = length;
+			writePtr += length;
+		}
+		return writePtr;
+	}
 
-				if ( tablePtr == table.length ) {
-					clearDictionary();
-					tablePtr = 256;
-				}
-				table[ tablePtr++ ] = newEntry;
+	/**
+	 * Decompresses data in parallel, splitting the work at the dictionary reset points
+	 * recorded while compressing.
+	 *
+	 * Uses its own dictionary tables, so this method may be called concurrently
+	 * on the same instance.
+	 *
+	 * @param in
+	 * @param resetIndex index populated by {@link #compress(byte[], BitStream, ResetIndex)}
+	 * @param pool
+	 * @return
+	 */
+	public byte[] decompress(BitStream in,ResetIndex resetIndex,ForkJoinPool pool)
+	{
+		final byte[] out = new byte[ resetIndex.getUncompressedLength() ];
+		if ( resetIndex.getNumberOfCodeWords() == 0 ) {
+			return out;
+		}
+
+		final int[] codes = new int[ resetIndex.getNumberOfCodeWords() ];
+		pool.invoke( new SegmentDecoder( in , resetIndex , codes , out , 0 , resetIndex.size()+1 , bitsPerEntry ) );
+		return out;
+	}
+
+	protected static final class SegmentDecoder extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private static final int SEGMENTS_PER_TASK = 4;
+
+		private final BitStream in;
+		private final ResetIndex resetIndex;
+		private final int[] codes;
+		private final byte[] out;
+		private final int firstSegment;
+		private final int endSegment;
+		private final int bitsPerEntry;
+
+		public SegmentDecoder(BitStream in,ResetIndex resetIndex,int[] codes,byte[] out,int firstSegment,int endSegment,int bitsPerEntry)
+		{
+			this.in = in;
+			this.resetIndex = resetIndex;
+			this.codes = codes;
+			this.out = out;
+			this.firstSegment = firstSegment;
+			this.endSegment = endSegment;
+			this.bitsPerEntry = bitsPerEntry;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final int segmentCount = endSegment - firstSegment;
+			if ( segmentCount > SEGMENTS_PER_TASK )
+			{
+				final int middle = firstSegment + segmentCount/2;
+				invokeAll( new SegmentDecoder( in , resetIndex , codes , out , firstSegment , middle , bitsPerEntry ),
+						   new SegmentDecoder( in , resetIndex , codes , out , middle , endSegment , bitsPerEntry ) );
+				return;
 			}
-			else
+
+			final int tableSize = 1 << bitsPerEntry;
+			final int[] entryOffsets = new int[ tableSize ];
+			final int[] entryLengths = new int[ tableSize ];
+
+			for ( int segment = firstSegment ; segment < endSegment ; segment++ )
 			{
-				final TableEntry newEntry = table[ last ].newEntry( table[ last ].firstByte() );
-				if ( tablePtr == table.length ) {
-					clearDictionary();
-					tablePtr = 256;
+				final int end = segment < resetIndex.size() ? resetIndex.getCodeIndex( segment ) : resetIndex.getNumberOfCodeWords();
+				if ( segment == 0 )
+				{
+					in.readCodes( resetIndex.getStartBitOffset() , codes , 0 , end , bitsPerEntry );
+
+					final int first = codes[0];
+					if ( first > 255 ) {
+						throw new IllegalArgumentException("Corrupt input, first code word is "+first);
+					}
+					out[0] = (byte) first;
+					decode( codes , 1 , end , out , 0 , 1 , entryOffsets , entryLengths , tableSize );
+				}
+				else
+				{
+					// code word at the reset point is replaced by its seed
+					final int resetPoint = segment-1;
+					final int start = resetIndex.getCodeIndex( resetPoint )+1;
+					in.readCodes( resetIndex.getBitOffset( resetPoint ) + bitsPerEntry , codes , start , end - start , bitsPerEntry );
+
+					final int lastOffset = resetIndex.getOutputOffset( resetPoint );
+					final int lastLength = resetIndex.copySeed( resetPoint , out , lastOffset );
+					decode( codes , start , end , out , lastOffset , lastLength , entryOffsets , entryLengths , tableSize );
 				}
-				table[ tablePtr++ ] = newEntry;
 			}
-			table[ next ].writePattern( out );
-			last = next;
 		}
-		return out.getBytes();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return number of bits per code word
+	 */
+	public int getBitsPerCodeWord() {
+		return bitsPerEntry;
+	}
+
+	@Override
+	public void close()
+	{
+		if ( encoder != null ) {
+			encoder.close();
+		}
+	}
+}
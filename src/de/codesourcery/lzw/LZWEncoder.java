@@ -0,0 +1,176 @@
+package de.codesourcery.lzw;
+
+/**
+ * LZW encoding loop shared by {@link LZWCompressor} and {@link LZWSessionEncoder}.
+ *
+ * The current pattern is kept between calls to {@link #encode(byte[], int, int, BitStream, ResetIndex)},
+ * so input may be fed in pieces.
+ */
+final class LZWEncoder implements AutoCloseable
+{
+	private final int bitsPerEntry;
+	private final int tableSize;
+
+	private final IPrefixTree tree;
+
+	private final byte[] patternBuffer;
+	private final byte[] singleByte = new byte[1];
+
+	// length of the current pattern, 0 if there is none
+	private int patternPtr;
+	// code of the current pattern
+	private int previousIdx;
+	private int tableInsertPtr;
+	// whether the code of the current pattern has been written by flush()
+	private boolean flushed;
+
+	/**
+	 *
+	 * @param offHeap whether to keep the dictionary in native memory, callers
+	 * must invoke {@link #close()} when done
+	 * @param bitsPerEntry
+	 */
+	public LZWEncoder(boolean offHeap,int bitsPerEntry)
+	{
+		this.bitsPerEntry = bitsPerEntry;
+		this.tableSize = 1 << bitsPerEntry;
+		this.patternBuffer = new byte[ tableSize ];
+		this.tree = offHeap ? new OffHeapPrefixTree( 2*tableSize ) : new PrefixTree( 2*tableSize );
+		clear();
+	}
+
+	/**
+	 * Clears the dictionary and drops the current pattern.
+	 */
+	public void clear()
+	{
+		clearDictionary();
+		tableInsertPtr = 256;
+		patternPtr = 0;
+		flushed = false;
+	}
+
+	/**
+	 * Runs bytes through the dictionary, writing a code word whenever a pattern ends.
+	 *
+	 * The pattern still open at the end is kept for the next call, see {@link #flush(BitStream)}.
+	 *
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @param out where to write code words, <code>null</code> to only count them
+	 * @param resetIndex index to add dictionary resets to, may be <code>null</code>. Code indices, bit and output offsets are relative to this call
+	 * @return number of code words written
+	 */
+	public int encode(byte[] in,int offset,int length,BitStream out,ResetIndex resetIndex)
+	{
+		final IPrefixTree tree = this.tree;
+		final byte[] patternBuffer = this.patternBuffer;
+		final int bitsPerEntry = this.bitsPerEntry;
+		final int tableSize = this.tableSize;
+
+		final long startBitOffset = out != null ? out.getSizeInBits() : 0;
+
+		int patternPtr = this.patternPtr;
+		int previousIdx = this.previousIdx;
+		int tableInsertPtr = this.tableInsertPtr;
+		int codeWords = 0;
+
+		int index = offset;
+		final int end = offset + length;
+		if ( flushed && index < end )
+		{
+			// the flushed pattern's code has been written already, only its entry is missing
+			final byte current = in[index++];
+			patternBuffer[patternPtr++] = current;
+			if ( tableInsertPtr == tableSize ) {
+				clearDictionary();
+				tableInsertPtr = 256;
+			}
+			tree.put( patternBuffer , patternPtr , tableInsertPtr++ );
+
+			patternBuffer[0] = current;
+			previousIdx = current & 0x000000ff;
+			patternPtr = 1;
+			flushed = false;
+		}
+
+		for ( ; index < end ; index++ )
+		{
+			final byte current = in[index];
+			patternBuffer[patternPtr++] = current;
+
+			final int existingIndex = tree.lookup( patternBuffer , patternPtr );
+			if ( existingIndex == -1 )
+			{
+				if ( tableInsertPtr == tableSize )
+				{
+					clearDictionary();
+					tableInsertPtr = 256;
+					if ( resetIndex != null )
+					{
+						// previousIdx still refers to the old dictionary, record its string
+						final int seedLength = patternPtr-1;
+						resetIndex.add( codeWords , startBitOffset + codeWords * (long) bitsPerEntry , index - offset - seedLength , patternBuffer , seedLength );
+					}
+				}
+
+				tree.put( patternBuffer , patternPtr , tableInsertPtr++ );
+
+				if ( out != null ) {
+					out.write( previousIdx , bitsPerEntry );
+				}
+				codeWords++;
+
+				patternBuffer[0] = current;
+				previousIdx = current & 0x000000ff;
+				patternPtr=1;
+			}
+			else
+			{
+				previousIdx = existingIndex;
+			}
+		}
+
+		this.patternPtr = patternPtr;
+		this.previousIdx = previousIdx;
+		this.tableInsertPtr = tableInsertPtr;
+		return codeWords;
+	}
+
+	/**
+	 * Writes the code word of the current pattern.
+	 *
+	 * The pattern's dictionary entry is added once the next byte is known, exactly like
+	 * a decoder does it, so encoding may continue afterwards.
+	 *
+	 * @param out where to write the code word, <code>null</code> to only count it
+	 * @return number of code words written
+	 */
+	public int flush(BitStream out)
+	{
+		if ( patternPtr == 0 || flushed ) {
+			return 0;
+		}
+		if ( out != null ) {
+			out.write( previousIdx , bitsPerEntry );
+		}
+		flushed = true;
+		return 1;
+	}
+
+	private void clearDictionary()
+	{
+		tree.clear();
+		for ( int i = 0 ; i < 256; i++ )
+		{
+			singleByte[0] = (byte) i;
+			tree.put( singleByte , i );
+		}
+	}
+
+	@Override
+	public void close() {
+		tree.close();
+	}
+}
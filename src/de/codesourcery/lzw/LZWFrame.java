@@ -0,0 +1,170 @@
+package de.codesourcery.lzw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Self-describing block of compressed data, used by the channel adapters.
+ *
+ * Layout (big-endian):
+ * <pre>
+ * int  uncompressed length in bytes
+ * int  number of code words
+ * byte bits per code word
+ * ...  code words, padded with zero bits to a full byte
+ * </pre>
+ */
+public final class LZWFrame
+{
+	public static final int HEADER_SIZE = 9;
+
+	/**
+	 * Largest uncompressed length of a frame, the code words of bigger frames
+	 * might not fit into a {@link BitStream}.
+	 */
+	public static final int MAX_FRAME_LENGTH = Integer.MAX_VALUE / LZWCompressor.MAX_BITS_PER_CODE_WORD;
+
+	/**
+	 * Largest uncompressed length readers accept unless told otherwise, frame headers
+	 * are not trusted with allocating more.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 16*1024*1024;
+
+	private LZWFrame() {
+	}
+
+	static int checkMaxFrameLength(int maxFrameLength)
+	{
+		if ( maxFrameLength < 0 || maxFrameLength > MAX_FRAME_LENGTH ) {
+			throw new IllegalArgumentException("Maximum frame length must be 0..."+MAX_FRAME_LENGTH+", was: "+maxFrameLength);
+		}
+		return maxFrameLength;
+	}
+
+	/**
+	 * Compresses data into a frame.
+	 *
+	 * @param compressor
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param scratch buffer to compress into, gets cleared before use
+	 * @return frame, ready for reading
+	 */
+	public static ByteBuffer encode(LZWCompressor compressor,byte[] data,int offset,int length,BitStream scratch)
+	{
+		scratch.clear();
+		final int codeWords = compressor.compress( data , offset , length , scratch , null );
+		return encode( length , codeWords , compressor.getBitsPerCodeWord() , scratch );
+	}
+
+	/**
+	 * Creates a frame from already compressed data.
+	 *
+	 * @param uncompressedLength
+	 * @param codeWords
+	 * @param bitsPerCodeWord
+	 * @param payload code words, starting at bit 0
+	 * @return frame, ready for reading
+	 */
+	public static ByteBuffer encode(int uncompressedLength,int codeWords,int bitsPerCodeWord,BitStream payload)
+	{
+		final ByteBuffer frame = ByteBuffer.allocate( HEADER_SIZE + payloadSize( codeWords , bitsPerCodeWord ) );
+		frame.putInt( uncompressedLength );
+		frame.putInt( codeWords );
+		frame.put( (byte) bitsPerCodeWord );
+		frame.put( payload.getBytes() );
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Returns the size of the payload following a frame header.
+	 *
+	 * @param header buffer positioned at the start of a frame header, position is not changed
+	 * @param compressor compressor that will be used to decode the frame
+	 * @param maxFrameLength largest uncompressed length to accept
+	 * @return
+	 * @throws IOException if the header is invalid or the frame is too large
+	 */
+	public static int payloadSize(ByteBuffer header,LZWCompressor compressor,int maxFrameLength) throws IOException
+	{
+		return payloadSize( header , compressor.getBitsPerCodeWord() , maxFrameLength );
+	}
+
+	/**
+	 * Returns the size of the payload following a frame header.
+	 *
+	 * @param header buffer positioned at the start of a frame header, position is not changed
+	 * @param expectedBitsPerCodeWord
+	 * @param maxFrameLength largest uncompressed length to accept
+	 * @return
+	 * @throws IOException if the header is invalid or the frame is too large
+	 */
+	public static int payloadSize(ByteBuffer header,int expectedBitsPerCodeWord,int maxFrameLength) throws IOException
+	{
+		final int base = header.position();
+		final int uncompressedLength = header.getInt( base );
+		final int codeWords = header.getInt( base + 4 );
+		final int bitsPerCodeWord = header.get( base + 8 ) & 0xff;
+
+		if ( uncompressedLength < 0 || codeWords < 0 || codeWords > uncompressedLength || ( codeWords == 0 && uncompressedLength != 0 ) ) {
+			throw new IOException("Corrupt frame header, "+codeWords+" code words for "+uncompressedLength+" bytes");
+		}
+		if ( bitsPerCodeWord != expectedBitsPerCodeWord ) {
+			throw new IOException("Frame uses "+bitsPerCodeWord+" bits per code word but "+expectedBitsPerCodeWord+" were expected");
+		}
+		if ( uncompressedLength > maxFrameLength ) {
+			throw new IOException("Frame of "+uncompressedLength+" bytes exceeds the limit of "+maxFrameLength+" bytes");
+		}
+		return payloadSize( codeWords , bitsPerCodeWord );
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the payload is too large for a frame
+	 */
+	public static int payloadSize(int codeWords,int bitsPerCodeWord)
+	{
+		final long size = ( codeWords * (long) bitsPerCodeWord + 7 ) / 8;
+		if ( codeWords < 0 || size > Integer.MAX_VALUE - HEADER_SIZE ) {
+			throw new IllegalArgumentException("Invalid payload size, "+codeWords+" code words of "+bitsPerCodeWord+" bits");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Decodes a frame.
+	 *
+	 * @param compressor
+	 * @param header frame header, validated by {@link #payloadSize(ByteBuffer, LZWCompressor, int)}, position is not changed
+	 * @param payload payload, all remaining bytes are consumed
+	 * @return uncompressed data
+	 * @throws IOException if the frame is corrupt
+	 */
+	public static byte[] decode(LZWCompressor compressor,ByteBuffer header,ByteBuffer payload) throws IOException
+	{
+		final int base = header.position();
+		final int uncompressedLength = header.getInt( base );
+		final int codeWords = header.getInt( base + 4 );
+		final int bitsPerCodeWord = header.get( base + 8 ) & 0xff;
+
+		final long bits = codeWords * (long) bitsPerCodeWord;
+		if ( codeWords < 0 || bits > payload.remaining() * 8L ) {
+			throw new IOException("Corrupt frame, "+codeWords+" code words do not fit into "+payload.remaining()+" bytes");
+		}
+		final byte[] bytes = new byte[ payload.remaining() ];
+		payload.get( bytes );
+
+		final byte[] result;
+		try {
+			result = compressor.decompress( new BitStream( bytes , (int) bits ) , codeWords );
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("Corrupt frame: "+e.getMessage(),e);
+		}
+		if ( result.length != uncompressedLength ) {
+			throw new IOException("Corrupt frame, expected "+uncompressedLength+" bytes but got "+result.length);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,139 @@
+package de.codesourcery.lzw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads {@link LZWFrame}s from another channel and returns the decompressed data.
+ *
+ * Works with non-blocking channels: partially received frames are kept until
+ * the rest arrives and {@link #read(ByteBuffer)} returns 0 if no data is available yet.
+ *
+ * @see LZWWritableChannel
+ */
+public class LZWReadableChannel implements ReadableByteChannel
+{
+	private final ReadableByteChannel in;
+	private final LZWCompressor compressor;
+	private final int maxFrameLength;
+
+	private final ByteBuffer header = ByteBuffer.allocate( LZWFrame.HEADER_SIZE );
+	private ByteBuffer payload;
+
+	private ByteBuffer decoded = ByteBuffer.allocate(0);
+
+	private boolean open = true;
+
+	public LZWReadableChannel(ReadableByteChannel in,LZWCompressor compressor) {
+		this(in,compressor,LZWFrame.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 *
+	 * @param in
+	 * @param compressor
+	 * @param maxFrameLength largest uncompressed frame length to accept, bigger frames are rejected as corrupt
+	 */
+	public LZWReadableChannel(ReadableByteChannel in,LZWCompressor compressor,int maxFrameLength)
+	{
+		this.in = in;
+		this.compressor = compressor;
+		this.maxFrameLength = LZWFrame.checkMaxFrameLength( maxFrameLength );
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException
+	{
+		if ( ! open ) {
+			throw new ClosedChannelException();
+		}
+
+		int total = 0;
+		while ( dst.hasRemaining() )
+		{
+			if ( decoded.hasRemaining() )
+			{
+				final int len = Math.min( dst.remaining() , decoded.remaining() );
+				final int limit = decoded.limit();
+				decoded.limit( decoded.position() + len );
+				dst.put( decoded );
+				decoded.limit( limit );
+				total += len;
+				continue;
+			}
+
+			final int result = readFrame();
+			if ( result == -1 ) {
+				return total == 0 ? -1 : total;
+			}
+			if ( result == 0 ) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Reads and decodes the next frame.
+	 *
+	 * @return 1 if a frame has been decoded, 0 if the source channel did not have enough data
+	 * and -1 on end-of-stream
+	 * @throws IOException
+	 */
+	private int readFrame() throws IOException
+	{
+		if ( payload == null )
+		{
+			while ( header.hasRemaining() )
+			{
+				final int read = in.read( header );
+				if ( read == -1 )
+				{
+					if ( header.position() == 0 ) {
+						return -1;
+					}
+					throw new EOFException("Premature end of stream while reading frame header");
+				}
+				if ( read == 0 ) {
+					return 0;
+				}
+			}
+			header.flip();
+			payload = ByteBuffer.allocate( LZWFrame.payloadSize( header , compressor , maxFrameLength ) );
+		}
+
+		while ( payload.hasRemaining() )
+		{
+			final int read = in.read( payload );
+			if ( read == -1 ) {
+				throw new EOFException("Premature end of stream while reading frame payload");
+			}
+			if ( read == 0 ) {
+				return 0;
+			}
+		}
+		payload.flip();
+		decoded = ByteBuffer.wrap( LZWFrame.decode( compressor , header , payload ) );
+
+		header.clear();
+		payload = null;
+		return 1;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if ( open ) {
+			open = false;
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package de.codesourcery.lzw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes frames created by a {@link LZWSessionEncoder}.
+ *
+ * Dictionary entries are stored as (prefix code,suffix byte) pairs so
+ * strings can be rebuilt without keeping previous messages around.
+ *
+ * The first entry after a dictionary reset extends a string from the previous
+ * dictionary whose slots are about to be reused, so that string is copied to a separate
+ * 'seed' buffer and the entry refers to the seed instead.
+ *
+ * A rejected frame leaves the dictionary out of sync with the encoder's, so once one has been
+ * rejected every further frame is rejected as well until {@link #reset()} is called.
+ */
+public class LZWSessionDecoder
+{
+	private static final int BITS_PER_ENTRY = LZWCompressor.BITS_PER_ENTRY;
+	private static final int TABLE_SIZE = LZWCompressor.TABLE_SIZE;
+
+	private final int[] prefixes = new int[ TABLE_SIZE ];
+	private final byte[] suffixes = new byte[ TABLE_SIZE ];
+	private final byte[] firstBytes = new byte[ TABLE_SIZE ];
+	private final int[] lengths = new int[ TABLE_SIZE ];
+
+	// prefix of an entry that refers to the seed
+	private static final int SEED = -1;
+
+	private byte[] seed = new byte[ TABLE_SIZE ];
+
+	private final int maxFrameLength;
+
+	private final ByteBuffer header = ByteBuffer.allocate( LZWFrame.HEADER_SIZE );
+	private int[] codes = new int[ 1024 ];
+
+	// code word decoded last, -1 at the start of a session
+	private int last = -1;
+	private int tablePtr = 256;
+
+	// set when a frame has been rejected
+	private boolean corrupt;
+
+	public LZWSessionDecoder() {
+		this(LZWFrame.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 *
+	 * @param maxFrameLength largest message length to accept, bigger frames are rejected as corrupt
+	 */
+	public LZWSessionDecoder(int maxFrameLength)
+	{
+		this.maxFrameLength = LZWFrame.checkMaxFrameLength( maxFrameLength );
+		for ( int i = 0 ; i < 256 ; i++ )
+		{
+			firstBytes[i] = (byte) i;
+			lengths[i] = 1;
+		}
+	}
+
+	/**
+	 * Decodes the next message.
+	 *
+	 * @param frame complete frame, all remaining bytes are consumed
+	 * @return
+	 * @throws IOException if the frame is corrupt or too large
+	 */
+	public byte[] decompress(ByteBuffer frame) throws IOException
+	{
+		if ( corrupt ) {
+			throw new IOException("Session is out of sync after a corrupt frame, reset() needs to be called");
+		}
+		try {
+			return decompressFrame( frame );
+		}
+		catch(IOException e)
+		{
+			corrupt = true;
+			throw e;
+		}
+	}
+
+	private byte[] decompressFrame(ByteBuffer frame) throws IOException
+	{
+		if ( frame.remaining() < LZWFrame.HEADER_SIZE ) {
+			throw new IOException("Incomplete frame header");
+		}
+		header.clear();
+		for ( int i = 0 ; i < LZWFrame.HEADER_SIZE ; i++ ) {
+			header.put( frame.get() );
+		}
+		header.flip();
+
+		final int payloadSize = LZWFrame.payloadSize( header , BITS_PER_ENTRY , maxFrameLength );
+		if ( frame.remaining() < payloadSize ) {
+			throw new IOException("Incomplete frame, expected "+payloadSize+" bytes of payload but got only "+frame.remaining());
+		}
+		final int uncompressedLength = header.getInt( 0 );
+		final int codeWords = header.getInt( 4 );
+
+		final byte[] payload = new byte[ payloadSize ];
+		frame.get( payload );
+		if ( codes.length < codeWords ) {
+			codes = new int[ codeWords ];
+		}
+		new BitStream( payload , codeWords * BITS_PER_ENTRY ).readCodes( codes , codeWords , BITS_PER_ENTRY );
+
+		final byte[] out = new byte[ uncompressedLength ];
+		if ( decode( codes , codeWords , out ) != uncompressedLength ) {
+			throw new IOException("Corrupt frame, length mismatch");
+		}
+		return out;
+	}
+
+	private int decode(int[] codes,int numberOfCodeWords,byte[] out) throws IOException
+	{
+		final int[] prefixes = this.prefixes;
+		final byte[] suffixes = this.suffixes;
+		final byte[] firstBytes = this.firstBytes;
+		final int[] lengths = this.lengths;
+
+		int last = this.last;
+		int tablePtr = this.tablePtr;
+		int writePtr = 0;
+
+		for ( int index = 0 ; index < numberOfCodeWords ; index++ )
+		{
+			final int next = codes[index];
+
+			if ( last != -1 )
+			{
+				if ( tablePtr == TABLE_SIZE ) {
+					tablePtr = 256;
+				}
+
+				// new entry is string(last) + first byte of string(next)
+				final byte firstByte;
+				if ( next < tablePtr ) {
+					firstByte = firstBytes[ next ];
+				} else if ( next == tablePtr ) {
+					firstByte = firstBytes[ last ]; // entry we're about to create
+				} else {
+					throw new IOException("Corrupt frame, code word "+index+" refers to undefined entry "+next);
+				}
+				if ( tablePtr == 256 && last > 255 ) {
+					copyToSeed( last );
+					prefixes[ tablePtr ] = SEED;
+				} else {
+					prefixes[ tablePtr ] = last;
+				}
+				suffixes[ tablePtr ] = firstByte;
+				final int length = lengths[ last ]+1;
+				firstBytes[ tablePtr ] = firstBytes[ last ];
+				lengths[ tablePtr ] = length;
+				tablePtr++;
+			}
+			else if ( next > 255 ) {
+				throw new IOException("Corrupt frame, first code word is "+next);
+			}
+
+			// walk the prefix chain, writing from back to front
+			final int length = lengths[ next ];
+			if ( length > out.length - writePtr ) {
+				throw new IOException("Corrupt frame, decoded data exceeds "+out.length+" bytes");
+			}
+			int code = next;
+			int ptr = writePtr + length - 1;
+			while ( code > 255 )
+			{
+				out[ ptr-- ] = suffixes[ code ];
+				code = prefixes[ code ];
+			}
+			if ( code == SEED ) {
+				System.arraycopy( seed , 0 , out , writePtr , ptr - writePtr + 1 );
+			} else {
+				out[ ptr ] = (byte) code;
+			}
+
+			writePtr += length;
+			last = next;
+		}
+		this.last = last;
+		this.tablePtr = tablePtr;
+		return writePtr;
+	}
+
+	private void copyToSeed(int code)
+	{
+		if ( lengths[ code ] > seed.length ) {
+			// keeps whatever the previous seed contributes to the prefix
+			seed = Arrays.copyOf( seed , Math.max( lengths[ code ] , 2*seed.length ) );
+		}
+		int ptr = lengths[ code ] - 1;
+		while ( code > 255 )
+		{
+			seed[ ptr-- ] = suffixes[ code ];
+			code = prefixes[ code ];
+		}
+		// if the chain ended at the previous seed, it already is in place as our prefix
+		if ( code != SEED ) {
+			seed[ ptr ] = (byte) code;
+		}
+	}
+
+	/**
+	 * Starts a new session, discarding all state.
+	 */
+	public void reset()
+	{
+		last = -1;
+		tablePtr = 256;
+		corrupt = false;
+	}
+}
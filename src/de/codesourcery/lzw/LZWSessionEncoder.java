@@ -0,0 +1,72 @@
+package de.codesourcery.lzw;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses a sequence of messages with one shared dictionary.
+ *
+ * Unlike {@link LZWCompressor#compress(byte[], BitStream)} the dictionary is not cleared
+ * between calls, so later messages benefit from everything seen before. Each message
+ * is flushed completely into its own byte-aligned {@link LZWFrame} and must be decoded
+ * by a {@link LZWSessionDecoder} in the same order.
+ *
+ * A flush ends the current pattern early. The dictionary entry that would have been created
+ * from it is added once the first byte of the next message is known, exactly like the
+ * decoder does, so both sides stay in sync.
+ */
+public class LZWSessionEncoder implements AutoCloseable
+{
+	private static final int BITS_PER_ENTRY = LZWCompressor.BITS_PER_ENTRY;
+
+	private final LZWEncoder encoder;
+
+	private final BitStream scratch = new BitStream(1024);
+
+	public LZWSessionEncoder() {
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param offHeap whether to keep the compression dictionary in native memory, callers
+	 * must invoke {@link #close()} when done
+	 */
+	public LZWSessionEncoder(boolean offHeap) {
+		this.encoder = new LZWEncoder( offHeap , BITS_PER_ENTRY );
+	}
+
+	public ByteBuffer compress(byte[] message) {
+		return compress( message , 0 , message.length );
+	}
+
+	/**
+	 * Compresses the next message.
+	 *
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @return frame holding all of the message, ready for reading
+	 * @throws IllegalArgumentException if the message is longer than {@link LZWFrame#MAX_FRAME_LENGTH}
+	 */
+	public ByteBuffer compress(byte[] message,int offset,int length)
+	{
+		if ( length > LZWFrame.MAX_FRAME_LENGTH ) {
+			throw new IllegalArgumentException("Message of "+length+" bytes exceeds the maximum frame length of "+LZWFrame.MAX_FRAME_LENGTH+" bytes");
+		}
+		scratch.clear();
+		final int codeWords = encoder.encode( message , offset , length , scratch , null ) + encoder.flush( scratch );
+		return LZWFrame.encode( length , codeWords , BITS_PER_ENTRY , scratch );
+	}
+
+	/**
+	 * Starts a new session, discarding all state.
+	 */
+	public void reset() {
+		encoder.clear();
+	}
+
+	@Override
+	public void close() {
+		encoder.close();
+	}
+}
@@ -0,0 +1,720 @@
+package de.codesourcery.lzw;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool.
+ *
+ * Usage: <code>lzw c|d|bench|stat [options] [file or directory...]</code>
+ *
+ * Files are compressed into a sequence of {@link LZWFrame}s, the format written by
+ * {@link LZWWritableChannel}. Directories are processed recursively and all files are
+ * processed in parallel. Without any files (or with <code>-</code>), <code>c</code> and <code>d</code>
+ * stream from stdin to stdout.
+ */
+public class LZWTool
+{
+	private static final String SUFFIX = ".lzw";
+
+	private static final int DEFAULT_BENCH_ROUNDS = 10;
+	private static final int BENCH_WARMUP_ROUNDS = 5;
+
+	private static final int DEFAULT_SAMPLE_BUDGET = 1024*1024;
+
+	private static final String STDIN = "-";
+
+	private boolean offHeap;
+	private int bitsPerCodeWord = LZWCompressor.BITS_PER_ENTRY;
+	private int blockSize = LZWWritableChannel.DEFAULT_BLOCK_SIZE;
+	// 0 = pick a default based on the command
+	private int threads;
+	private int rounds = DEFAULT_BENCH_ROUNDS;
+	private int sampleBudget = DEFAULT_SAMPLE_BUDGET;
+	private boolean force;
+	private boolean quiet;
+
+	private final List<String> inputs = new ArrayList<>();
+
+	// one compressor per thread and code word width, reused for all files the thread processes
+	private final ThreadLocal<Map<Integer,LZWCompressor>> compressors = ThreadLocal.withInitial( HashMap::new );
+	// all compressors handed out, guarded by itself
+	private final List<LZWCompressor> allCompressors = new ArrayList<>();
+
+	/**
+	 * Outcome of processing one file.
+	 */
+	protected static final class Result
+	{
+		public final String name;
+		public final long uncompressedBytes;
+		public final long compressedBytes;
+		// time spent processing the uncompressed bytes, used to calculate throughput
+		public final long nanos;
+		public final String details;
+
+		public Result(String name,long uncompressedBytes,long compressedBytes,long nanos,String details)
+		{
+			this.name = name;
+			this.uncompressedBytes = uncompressedBytes;
+			this.compressedBytes = compressedBytes;
+			this.nanos = nanos;
+			this.details = details;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.ROOT , "%s: %d -> %d bytes, ratio %.3f, %.1f MB/s%s",
+					name , uncompressedBytes , compressedBytes , ratio( compressedBytes , uncompressedBytes ) ,
+					megabytesPerSecond( uncompressedBytes , nanos ) , details == null ? "" : ", "+details );
+		}
+	}
+
+	@FunctionalInterface
+	private interface FileTask
+	{
+		Result run(Path file) throws IOException;
+	}
+
+	public static void main(String[] args)
+	{
+		final LZWTool tool = new LZWTool();
+		final String command;
+		try {
+			command = tool.parseCommandLine( args );
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println("ERROR: "+e.getMessage());
+			System.err.println();
+			printUsage( System.err );
+			System.exit( 2 );
+			return;
+		}
+
+		boolean success;
+		try {
+			success = tool.run( command );
+		}
+		catch(IOException e)
+		{
+			System.err.println("ERROR: "+e.getMessage());
+			success = false;
+		}
+		System.exit( success ? 0 : 1 );
+	}
+
+	private static void printUsage(PrintStream out)
+	{
+		out.println("Usage: lzw c|d|bench|stat [options] [file or directory...]");
+		out.println();
+		out.println("c      compress each file to <file>"+SUFFIX);
+		out.println("d      decompress each "+SUFFIX+" file");
+		out.println("bench  measure in-memory compression and decompression throughput");
+		out.println("stat   estimate compression ratios by sampling");
+		out.println();
+		out.println("Directories are processed recursively. Without files or with '"+STDIN+"', c and d");
+		out.println("read from stdin and write to stdout.");
+		out.println();
+		out.println("Options:");
+		out.println("-e heap|offheap  dictionary engine (default: heap)");
+		out.println("-w <bits>        code word width, "+LZWCompressor.MIN_BITS_PER_CODE_WORD+"-"+LZWCompressor.MAX_BITS_PER_CODE_WORD+" (default: "+LZWCompressor.BITS_PER_ENTRY+"), decompression detects it");
+		out.println("-b <size>        block size, suffixes k and m are supported (default: "+LZWWritableChannel.DEFAULT_BLOCK_SIZE/1024+"k)");
+		out.println("                 d rejects blocks larger than this or "+LZWFrame.DEFAULT_MAX_FRAME_LENGTH/(1024*1024)+"m, whichever is more");
+		out.println("-t <threads>     number of files processed in parallel (default: number of CPUs, 1 for bench)");
+		out.println("-r <rounds>      measured rounds per file for bench (default: "+DEFAULT_BENCH_ROUNDS+")");
+		out.println("-s <size>        bytes sampled per file for stat (default: "+DEFAULT_SAMPLE_BUDGET/1024+"k)");
+		out.println("-f               overwrite existing output files");
+		out.println("-q               do not print per-file statistics");
+	}
+
+	/**
+	 * @return command
+	 * @throws IllegalArgumentException on invalid command lines
+	 */
+	protected String parseCommandLine(String[] args)
+	{
+		if ( args.length == 0 ) {
+			throw new IllegalArgumentException("No command given");
+		}
+		final String command = args[0];
+		switch( command )
+		{
+			case "c":
+			case "d":
+			case "bench":
+			case "stat":
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown command '"+command+"'");
+		}
+
+		for ( int i = 1 ; i < args.length ; i++ )
+		{
+			final String arg = args[i];
+			if ( arg.length() < 2 || arg.charAt(0) != '-' ) {
+				inputs.add( arg );
+				continue;
+			}
+			switch( arg )
+			{
+				case "-f": force = true; break;
+				case "-q": quiet = true; break;
+				case "-e":
+					final String engine = value( args , ++i , arg );
+					if ( ! "heap".equals( engine ) && ! "offheap".equals( engine ) ) {
+						throw new IllegalArgumentException("Unknown engine '"+engine+"'");
+					}
+					offHeap = "offheap".equals( engine );
+					break;
+				case "-w":
+					bitsPerCodeWord = (int) parseSize( value( args , ++i , arg ) , arg );
+					if ( bitsPerCodeWord < LZWCompressor.MIN_BITS_PER_CODE_WORD || bitsPerCodeWord > LZWCompressor.MAX_BITS_PER_CODE_WORD ) {
+						throw new IllegalArgumentException("Code word width must be between "+LZWCompressor.MIN_BITS_PER_CODE_WORD+" and "+LZWCompressor.MAX_BITS_PER_CODE_WORD);
+					}
+					break;
+				case "-b":
+					blockSize = (int) parseSize( value( args , ++i , arg ) , arg );
+					if ( blockSize > LZWFrame.MAX_FRAME_LENGTH ) {
+						throw new IllegalArgumentException("Block size must not exceed "+LZWFrame.MAX_FRAME_LENGTH+" bytes");
+					}
+					break;
+				case "-t": threads = (int) parseSize( value( args , ++i , arg ) , arg ); break;
+				case "-r": rounds = (int) parseSize( value( args , ++i , arg ) , arg ); break;
+				case "-s": sampleBudget = (int) parseSize( value( args , ++i , arg ) , arg ); break;
+				default:
+					throw new IllegalArgumentException("Unknown option '"+arg+"'");
+			}
+		}
+
+		if ( ( command.equals("bench") || command.equals("stat") ) && ( inputs.isEmpty() || inputs.contains( STDIN ) ) ) {
+			throw new IllegalArgumentException("'"+command+"' needs at least one file and does not read from stdin");
+		}
+		if ( inputs.contains( STDIN ) && inputs.size() > 1 ) {
+			throw new IllegalArgumentException("Reading from stdin cannot be combined with files");
+		}
+		return command;
+	}
+
+	private static String value(String[] args,int index,String option)
+	{
+		if ( index >= args.length ) {
+			throw new IllegalArgumentException("Option "+option+" needs a value");
+		}
+		return args[index];
+	}
+
+	private static long parseSize(String value,String option)
+	{
+		final String lower = value.toLowerCase( Locale.ROOT );
+		long factor = 1;
+		String digits = lower;
+		if ( lower.endsWith("k") ) {
+			factor = 1024;
+			digits = lower.substring( 0 , lower.length()-1 );
+		} else if ( lower.endsWith("m") ) {
+			factor = 1024*1024;
+			digits = lower.substring( 0 , lower.length()-1 );
+		}
+		final long result;
+		try {
+			result = Long.parseLong( digits ) * factor;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value '"+value+"' for option "+option);
+		}
+		if ( result < 1 || result > Integer.MAX_VALUE - 8 ) {
+			throw new IllegalArgumentException("Value for option "+option+" is out of range: "+value);
+		}
+		return result;
+	}
+
+	/**
+	 * @return <code>true</code> if all files were processed successfully
+	 */
+	protected boolean run(String command) throws IOException
+	{
+		try {
+			return doRun( command );
+		} finally {
+			closeCompressors();
+		}
+	}
+
+	private boolean doRun(String command) throws IOException
+	{
+		if ( ( command.equals("c") || command.equals("d") ) && ( inputs.isEmpty() || inputs.contains( STDIN ) ) )
+		{
+			final Result result = command.equals("c") ? compressStream() : decompressStream();
+			if ( ! quiet ) {
+				System.err.println( result );
+			}
+			return true;
+		}
+
+		final List<Path> files = collectFiles( command );
+		// benchmarks running side by side would skew each other's numbers
+		final int threadCount = threads > 0 ? threads : command.equals("bench") ? 1 : Runtime.getRuntime().availableProcessors();
+		switch( command )
+		{
+			case "c":     return runParallel( files , this::compressFile , threadCount , true );
+			case "d":     return runParallel( files , this::decompressFile , threadCount , true );
+			case "bench": return runParallel( files , this::bench , threadCount , false );
+			case "stat":  return runParallel( files , this::stat , threadCount , false );
+			default:
+				throw new IllegalArgumentException("Unknown command '"+command+"'");
+		}
+	}
+
+	private List<Path> collectFiles(String command) throws IOException
+	{
+		final List<Path> result = new ArrayList<>();
+		for ( String input : inputs )
+		{
+			final Path path = Paths.get( input );
+			if ( Files.isDirectory( path ) )
+			{
+				try ( Stream<Path> stream = Files.walk( path ) )
+				{
+					stream.filter( Files::isRegularFile )
+						.filter( file -> isCandidate( command , file ) )
+						.sorted()
+						.forEach( result::add );
+				}
+			}
+			else if ( Files.exists( path ) ) {
+				// named explicitly, no filtering
+				result.add( path );
+			} else {
+				throw new IOException("No such file or directory: "+path);
+			}
+		}
+		return result;
+	}
+
+	private static boolean isCandidate(String command,Path file)
+	{
+		final boolean compressed = file.getFileName().toString().endsWith( SUFFIX );
+		switch( command ) {
+			case "c": return ! compressed;
+			case "d": return compressed;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Runs a task for every file using a thread pool and prints the results in input order.
+	 *
+	 * @param wallClockThroughput whether the summary should report throughput based on
+	 * elapsed time (only meaningful if the tasks do nothing but processing the data once)
+	 */
+	private boolean runParallel(List<Path> files,FileTask task,int threadCount,boolean wallClockThroughput) throws IOException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1 , Math.min( threadCount , files.size() ) ) );
+
+		final long start = System.nanoTime();
+		final List<Future<Result>> futures = new ArrayList<>();
+		for ( Path file : files ) {
+			futures.add( executor.submit( () -> task.run( file ) ) );
+		}
+
+		int succeeded = 0;
+		long uncompressed = 0;
+		long compressed = 0;
+		try
+		{
+			for ( int i = 0 ; i < futures.size() ; i++ )
+			{
+				try
+				{
+					final Result result = futures.get(i).get();
+					succeeded++;
+					uncompressed += result.uncompressedBytes;
+					compressed += result.compressedBytes;
+					if ( ! quiet ) {
+						System.out.println( result );
+					}
+				}
+				catch(ExecutionException e)
+				{
+					final Throwable cause = e.getCause();
+					System.err.println( files.get(i)+": FAILED - "+( cause.getMessage() != null ? cause.getMessage() : cause.toString() ) );
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		if ( files.size() > 1 )
+		{
+			final long elapsed = System.nanoTime() - start;
+			// byte counts and throughput only cover the files that succeeded
+			System.out.println( String.format( Locale.ROOT , "Total: %d files succeeded, %d failed, %d -> %d bytes, ratio %.3f%s" ,
+					succeeded , files.size() - succeeded , uncompressed , compressed , ratio( compressed , uncompressed ) ,
+					wallClockThroughput ? String.format( Locale.ROOT , ", %.1f MB/s" , megabytesPerSecond( uncompressed , elapsed ) ) : "" ) );
+		}
+		return succeeded == files.size();
+	}
+
+	/**
+	 * Returns the calling thread's compressor for a code word width.
+	 *
+	 * Compressors are closed when {@link #run(String)} finishes, callers must not close them.
+	 */
+	private LZWCompressor compressor(int bits)
+	{
+		return compressors.get().computeIfAbsent( bits , key ->
+		{
+			final LZWCompressor result = new LZWCompressor( offHeap , key );
+			synchronized( allCompressors ) {
+				allCompressors.add( result );
+			}
+			return result;
+		});
+	}
+
+	private void closeCompressors()
+	{
+		synchronized( allCompressors )
+		{
+			allCompressors.forEach( LZWCompressor::close );
+			allCompressors.clear();
+		}
+	}
+
+	private Result compressFile(Path file) throws IOException
+	{
+		final Path target = file.resolveSibling( file.getFileName()+SUFFIX );
+		final long start = System.nanoTime();
+		final WritableByteChannel targetChannel = openOutput( target );
+		final long uncompressed;
+		try ( FileChannel in = FileChannel.open( file , StandardOpenOption.READ );
+			  LZWWritableChannel out = new LZWWritableChannel( targetChannel , compressor( bitsPerCodeWord ) , blockSize ) )
+		{
+			uncompressed = copy( in , out );
+		}
+		catch(IOException | RuntimeException e)
+		{
+			targetChannel.close();
+			deleteQuietly( target );
+			throw e;
+		}
+		return new Result( file.toString() , uncompressed , Files.size( target ) , System.nanoTime() - start , null );
+	}
+
+	private Result compressStream() throws IOException
+	{
+		final long start = System.nanoTime();
+		final CountingChannel out = new CountingChannel( (WritableByteChannel) new FileOutputStream( FileDescriptor.out ).getChannel() );
+		final long uncompressed;
+		try ( FileChannel in = new FileInputStream( FileDescriptor.in ).getChannel();
+			  LZWWritableChannel lzw = new LZWWritableChannel( out , compressor( bitsPerCodeWord ) , blockSize ) )
+		{
+			uncompressed = copy( in , lzw );
+		}
+		return new Result( "<stdin>" , uncompressed , out.count , System.nanoTime() - start , null );
+	}
+
+	private Result decompressFile(Path file) throws IOException
+	{
+		final String name = file.getFileName().toString();
+		final String targetName = name.endsWith( SUFFIX ) && name.length() > SUFFIX.length() ? name.substring( 0 , name.length() - SUFFIX.length() ) : name+".out";
+		final Path target = file.resolveSibling( targetName );
+		final WritableByteChannel targetChannel = openOutput( target );
+		try ( WritableByteChannel out = targetChannel ) {
+			return decompress( Files.newInputStream( file ) , out , file.toString() );
+		}
+		catch(IOException | RuntimeException e)
+		{
+			deleteQuietly( target );
+			throw e;
+		}
+	}
+
+	private Result decompressStream() throws IOException
+	{
+		try ( WritableByteChannel out = new FileOutputStream( FileDescriptor.out ).getChannel() ) {
+			return decompress( new FileInputStream( FileDescriptor.in ) , out , "<stdin>" );
+		}
+	}
+
+	private Result decompress(InputStream rawIn,WritableByteChannel out,String name) throws IOException
+	{
+		final long start = System.nanoTime();
+		final BufferedInputStream in = new BufferedInputStream( rawIn , 64*1024 );
+		final long uncompressed;
+		final CountingChannel compressed = new CountingChannel( Channels.newChannel( in ) );
+		try ( ReadableByteChannel source = compressed;
+			  LZWReadableChannel lzw = new LZWReadableChannel( source , compressor( peekBitsPerCodeWord( in ) ) , Math.max( blockSize , LZWFrame.DEFAULT_MAX_FRAME_LENGTH ) ) )
+		{
+			uncompressed = copy( lzw , out );
+		}
+		return new Result( name , uncompressed , compressed.count , System.nanoTime() - start , null );
+	}
+
+	/**
+	 * Looks at the first frame header to find out which code word width the stream uses.
+	 *
+	 * @param in stream positioned at a frame header, position is not changed
+	 * @return width of the first frame or the configured width if there are not enough bytes to tell
+	 */
+	private int peekBitsPerCodeWord(BufferedInputStream in) throws IOException
+	{
+		final byte[] header = new byte[ LZWFrame.HEADER_SIZE ];
+		in.mark( header.length );
+		int read = 0;
+		while ( read < header.length )
+		{
+			final int len = in.read( header , read , header.length - read );
+			if ( len == -1 ) {
+				break;
+			}
+			read += len;
+		}
+		in.reset();
+
+		if ( read < header.length ) {
+			return bitsPerCodeWord; // let the channel complain about truncated input
+		}
+		final int bits = header[8] & 0xff;
+		if ( bits < LZWCompressor.MIN_BITS_PER_CODE_WORD || bits > LZWCompressor.MAX_BITS_PER_CODE_WORD ) {
+			throw new IOException("Not LZW compressed or unsupported code word width "+bits);
+		}
+		return bits;
+	}
+
+	private Result bench(Path file) throws IOException
+	{
+		final byte[] data = Files.readAllBytes( file );
+		final int blockCount = ( data.length + blockSize - 1 ) / blockSize;
+
+		final BitStream[] compressed = new BitStream[ blockCount ];
+		final int[] codeWords = new int[ blockCount ];
+		for ( int i = 0 ; i < blockCount ; i++ ) {
+			compressed[i] = new BitStream( 1024 );
+		}
+		final byte[] decompressed = new byte[ Math.min( blockSize , data.length ) ];
+
+		final LZWCompressor compressor = compressor( bitsPerCodeWord );
+		final Runnable compress = () ->
+		{
+			for ( int i = 0 ; i < blockCount ; i++ )
+			{
+				final int offset = i * blockSize;
+				compressed[i].clear();
+				codeWords[i] = compressor.compress( data , offset , Math.min( blockSize , data.length - offset ) , compressed[i] , null );
+			}
+		};
+		final Runnable decompress = () ->
+		{
+			for ( int i = 0 ; i < blockCount ; i++ )
+			{
+				compressed[i].reset();
+				compressor.decompress( compressed[i] , codeWords[i] , decompressed , 0 );
+			}
+		};
+
+		for ( int i = 0 ; i < BENCH_WARMUP_ROUNDS ; i++ )
+		{
+			compress.run();
+			decompress.run();
+		}
+		final long compressNanos = time( compress ) / rounds;
+		final long decompressNanos = time( decompress ) / rounds;
+
+		long compressedBytes = 0;
+		for ( int i = 0 ; i < blockCount ; i++ )
+		{
+			final int offset = i * blockSize;
+			final int length = Math.min( blockSize , data.length - offset );
+			compressed[i].reset();
+			if ( compressor.decompress( compressed[i] , codeWords[i] , decompressed , 0 ) != length || ! equals( data , offset , decompressed , length ) ) {
+				throw new IOException("Round-trip failed for block "+i);
+			}
+			compressedBytes += LZWFrame.HEADER_SIZE + LZWFrame.payloadSize( codeWords[i] , bitsPerCodeWord );
+		}
+		final String details = String.format( Locale.ROOT , "decompression %.1f MB/s" , megabytesPerSecond( data.length , decompressNanos ) );
+		return new Result( file.toString() , data.length , compressedBytes , compressNanos , details );
+	}
+
+	private long time(Runnable r)
+	{
+		final long start = System.nanoTime();
+		for ( int i = 0 ; i < rounds ; i++ ) {
+			r.run();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static boolean equals(byte[] expected,int offset,byte[] actual,int length)
+	{
+		for ( int i = 0 ; i < length ; i++ )
+		{
+			if ( expected[ offset + i ] != actual[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Result stat(Path file) throws IOException
+	{
+		final long start = System.nanoTime();
+		try ( FileChannel channel = FileChannel.open( file , StandardOpenOption.READ ) )
+		{
+			if ( channel.size() > Integer.MAX_VALUE ) {
+				throw new IOException("File too large: "+channel.size()+" bytes");
+			}
+			final int length = (int) channel.size();
+			final ByteBuffer data = length == 0 ? ByteBuffer.allocate(0) : channel.map( FileChannel.MapMode.READ_ONLY , 0 , length );
+
+			final LZWCompressor.Estimate estimate = compressor( bitsPerCodeWord ).estimateRatio( data , sampleBudget );
+			final String details = String.format( Locale.ROOT , "estimated, confidence %.2f, %d bytes sampled" , estimate.confidence , estimate.bytesSampled );
+			return new Result( file.toString() , length , Math.round( (double) estimate.ratio * length ) , System.nanoTime() - start , details );
+		}
+	}
+
+	private WritableByteChannel openOutput(Path target) throws IOException
+	{
+		final OpenOption[] options = force ?
+				new OpenOption[] { StandardOpenOption.WRITE , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING } :
+				new OpenOption[] { StandardOpenOption.WRITE , StandardOpenOption.CREATE_NEW };
+		try {
+			return FileChannel.open( target , options );
+		}
+		catch(FileAlreadyExistsException e) {
+			throw new FileAlreadyExistsException( target.toString() , null , "already exists, use -f to overwrite" );
+		}
+	}
+
+	private static void deleteQuietly(Path file)
+	{
+		try {
+			Files.deleteIfExists( file );
+		} catch(IOException e) {
+			// nothing we can do
+		}
+	}
+
+	private long copy(ReadableByteChannel in,WritableByteChannel out) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( Math.min( blockSize , 1024*1024 ) );
+		long total = 0;
+		while ( in.read( buffer ) != -1 )
+		{
+			buffer.flip();
+			total += buffer.remaining();
+			while ( buffer.hasRemaining() ) {
+				out.write( buffer );
+			}
+			buffer.clear();
+		}
+		return total;
+	}
+
+	private static double ratio(long compressed,long uncompressed) {
+		return uncompressed == 0 ? 1 : compressed / (double) uncompressed;
+	}
+
+	private static double megabytesPerSecond(long bytes,long nanos) {
+		return nanos <= 0 ? 0 : ( bytes / ( 1024*1024d ) ) / ( nanos / 1_000_000_000d );
+	}
+
+	/**
+	 * Counts the bytes passing through a channel.
+	 */
+	private static final class CountingChannel implements ReadableByteChannel, WritableByteChannel
+	{
+		private final ReadableByteChannel in;
+		private final WritableByteChannel out;
+
+		public long count;
+
+		public CountingChannel(ReadableByteChannel in)
+		{
+			this.in = in;
+			this.out = null;
+		}
+
+		public CountingChannel(WritableByteChannel out)
+		{
+			this.in = null;
+			this.out = out;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException
+		{
+			if ( in == null ) {
+				throw new NonReadableChannelException();
+			}
+			final int read = in.read( dst );
+			if ( read > 0 ) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException
+		{
+			if ( out == null ) {
+				throw new NonWritableChannelException();
+			}
+			final int written = out.write( src );
+			count += written;
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return in != null ? in.isOpen() : out.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if ( in != null ) {
+				in.close();
+			} else {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package de.codesourcery.lzw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Compresses everything written to it and passes the result on to another channel.
+ *
+ * Data is collected into blocks of a fixed size, each block is written as
+ * one {@link LZWFrame}. Works with non-blocking channels: if the target channel does not
+ * accept a complete frame, the remainder is kept and {@link #write(ByteBuffer)} consumes
+ * no further input until it has been written.
+ *
+ * @see LZWReadableChannel
+ */
+public class LZWWritableChannel implements WritableByteChannel
+{
+	public static final int DEFAULT_BLOCK_SIZE = 256*1024;
+
+	private final WritableByteChannel out;
+	private final LZWCompressor compressor;
+
+	private final byte[] block;
+	private int blockSize;
+
+	private final BitStream scratch = new BitStream(1024);
+
+	// frame not (completely) written to the target channel yet
+	private ByteBuffer pending;
+
+	private boolean open = true;
+
+	public LZWWritableChannel(WritableByteChannel out,LZWCompressor compressor) {
+		this(out,compressor,DEFAULT_BLOCK_SIZE);
+	}
+
+	public LZWWritableChannel(WritableByteChannel out,LZWCompressor compressor,int blockSize)
+	{
+		if ( blockSize < 1 || blockSize > LZWFrame.MAX_FRAME_LENGTH ) {
+			throw new IllegalArgumentException("Block size must be 1..."+LZWFrame.MAX_FRAME_LENGTH+", was: "+blockSize);
+		}
+		this.out = out;
+		this.compressor = compressor;
+		this.block = new byte[ blockSize ];
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		ensureOpen();
+
+		if ( ! writePending() ) {
+			return 0;
+		}
+
+		int consumed = 0;
+		while ( src.hasRemaining() )
+		{
+			final int len = Math.min( src.remaining() , block.length - blockSize );
+			src.get( block , blockSize , len );
+			blockSize += len;
+			consumed += len;
+
+			if ( blockSize == block.length )
+			{
+				encodeBlock();
+				if ( ! writePending() ) {
+					break;
+				}
+			}
+		}
+		return consumed;
+	}
+
+	/**
+	 * Compresses any buffered input and tries to write it to the target channel.
+	 *
+	 * @return <code>true</code> if all data has been written, <code>false</code> if the (non-blocking)
+	 * target channel did not accept everything and this method needs to be called again
+	 * @throws IOException
+	 */
+	public boolean flush() throws IOException
+	{
+		ensureOpen();
+
+		if ( ! writePending() ) {
+			return false;
+		}
+		if ( blockSize > 0 ) {
+			encodeBlock();
+		}
+		return writePending();
+	}
+
+	private void encodeBlock()
+	{
+		pending = LZWFrame.encode( compressor , block , 0 , blockSize , scratch );
+		blockSize = 0;
+	}
+
+	private boolean writePending() throws IOException
+	{
+		if ( pending != null )
+		{
+			while ( pending.hasRemaining() )
+			{
+				if ( out.write( pending ) == 0 ) {
+					return false;
+				}
+			}
+			pending = null;
+		}
+		return true;
+	}
+
+	private void ensureOpen() throws ClosedChannelException
+	{
+		if ( ! open ) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Flushes all remaining data and closes the target channel.
+	 *
+	 * With a non-blocking target channel this method spins until everything has been written,
+	 * call {@link #flush()} until it returns <code>true</code> to avoid this.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if ( ! open ) {
+			return;
+		}
+		try
+		{
+			while ( ! flush() ) {
+				Thread.yield();
+			}
+		}
+		finally
+		{
+			open = false;
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package de.codesourcery.lzw;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Prefix tree that keeps all nodes in a single direct {@link ByteBuffer}.
+ *
+ * Children of the root node are looked up through a direct 256-entry table, children of
+ * all other nodes are kept as a singly-linked list (first child / next sibling),
+ * so clearing the tree is cheap and neither {@link #clear()} nor {@link #put(byte[], int, int)}
+ * allocate on the heap unless the buffer needs to grow.
+ *
+ * The native memory is returned once {@link #close()} has been called and the
+ * buffer got garbage-collected.
+ */
+public class OffHeapPrefixTree implements IPrefixTree {
+
+	// table with first-level children, indexed by (unsigned) suffix byte
+	private static final int ROOT_TABLE_SIZE = 256 * 4;
+
+	// node layout
+	private static final int NODE_SIZE = 16;
+
+	private static final int VALUE_OFFSET = 0;
+	private static final int FIRST_CHILD_OFFSET = 4;
+	private static final int NEXT_SIBLING_OFFSET = 8;
+	private static final int SUFFIX_OFFSET = 12;
+
+	// root node is never a child so 0 can be used as end-of-list marker
+	private static final int NO_NODE = 0;
+
+	private ByteBuffer nodes;
+
+	private int maxNodeCount;
+	private int nodeCount;
+
+	public OffHeapPrefixTree(int nodeCount)
+	{
+		this.nodes = ByteBuffer.allocateDirect( ROOT_TABLE_SIZE + nodeCount * NODE_SIZE ).order( ByteOrder.nativeOrder() );
+		this.maxNodeCount = nodeCount;
+		clear();
+	}
+
+	private static int nodeAddress(int node) {
+		return ROOT_TABLE_SIZE + node * NODE_SIZE;
+	}
+
+	private ByteBuffer nodes()
+	{
+		final ByteBuffer result = this.nodes;
+		if ( result == null ) {
+			throw new IllegalStateException("Tree has already been closed");
+		}
+		return result;
+	}
+
+	private static void initNode(ByteBuffer nodes,int node,byte suffix)
+	{
+		final int base = ROOT_TABLE_SIZE + node * NODE_SIZE;
+		nodes.putInt( base + VALUE_OFFSET , -1 );
+		nodes.putInt( base + FIRST_CHILD_OFFSET , NO_NODE );
+		nodes.putInt( base + NEXT_SIBLING_OFFSET , NO_NODE );
+		nodes.put( base + SUFFIX_OFFSET , suffix );
+	}
+
+	private ByteBuffer resize()
+	{
+		final int newSize = maxNodeCount * 2;
+
+		final ByteBuffer newNodes = ByteBuffer.allocateDirect( ROOT_TABLE_SIZE + newSize * NODE_SIZE ).order( ByteOrder.nativeOrder() );
+		final ByteBuffer oldNodes = this.nodes.duplicate();
+		oldNodes.clear();
+		newNodes.put( oldNodes );
+		newNodes.clear();
+
+		this.nodes = newNodes;
+		this.maxNodeCount = newSize;
+		return newNodes;
+	}
+
+	@Override
+	public void put(byte[] pattern,int nodeValue) {
+		put(pattern,pattern.length , nodeValue );
+	}
+
+	@Override
+	public void put(byte[] pattern,int len, int nodeValue)
+	{
+		ByteBuffer nodes = nodes();
+
+		int offset = 0;
+		int currentNode = 0;
+
+		while ( offset < len )
+		{
+			final byte currentValue = pattern[offset];
+
+			int previousChild = NO_NODE;
+			int child;
+			if ( currentNode == 0 )
+			{
+				child = nodes.getInt( ( currentValue & 0xff ) * 4 );
+			}
+			else
+			{
+				child = nodes.getInt( nodeAddress(currentNode) + FIRST_CHILD_OFFSET );
+				while ( child != NO_NODE && nodes.get( nodeAddress(child) + SUFFIX_OFFSET ) != currentValue )
+				{
+					previousChild = child;
+					child = nodes.getInt( nodeAddress(child) + NEXT_SIBLING_OFFSET );
+				}
+			}
+
+			if ( child == NO_NODE )
+			{
+				child = nodeCount++;
+				if ( child >= maxNodeCount ) {
+					nodes = resize();
+				}
+				initNode( nodes , child , currentValue );
+				if ( currentNode == 0 ) {
+					nodes.putInt( ( currentValue & 0xff ) * 4 , child );
+				} else if ( previousChild == NO_NODE ) {
+					nodes.putInt( nodeAddress(currentNode) + FIRST_CHILD_OFFSET , child );
+				} else {
+					nodes.putInt( nodeAddress(previousChild) + NEXT_SIBLING_OFFSET , child );
+				}
+			}
+			offset++;
+			currentNode = child;
+		}
+		nodes.putInt( nodeAddress(currentNode) + VALUE_OFFSET , nodeValue );
+	}
+
+	@Override
+	public int lookup(byte[] pattern) {
+		return lookup(pattern,pattern.length);
+	}
+
+	@Override
+	public int lookup(byte[] pattern,int len)
+	{
+		final ByteBuffer nodes = nodes();
+
+		if ( len == 0 ) {
+			return nodes.getInt( nodeAddress(0) + VALUE_OFFSET );
+		}
+
+		int currentNode = nodes.getInt( ( pattern[0] & 0xff ) * 4 );
+		if ( currentNode == NO_NODE ) {
+			return -1;
+		}
+
+		int offset = 1;
+		while ( offset < len )
+		{
+			final byte currentValue = pattern[offset];
+
+			int child = nodes.getInt( nodeAddress(currentNode) + FIRST_CHILD_OFFSET );
+			while ( child != NO_NODE && nodes.get( nodeAddress(child) + SUFFIX_OFFSET ) != currentValue ) {
+				child = nodes.getInt( nodeAddress(child) + NEXT_SIBLING_OFFSET );
+			}
+			if ( child == NO_NODE ) {
+				return -1;
+			}
+			currentNode = child;
+			offset++;
+		}
+		return nodes.getInt( nodeAddress(currentNode) + VALUE_OFFSET );
+	}
+
+	@Override
+	public void clear()
+	{
+		final ByteBuffer nodes = nodes();
+		for ( int i = 0 ; i < ROOT_TABLE_SIZE ; i += 4 ) {
+			nodes.putInt( i , NO_NODE );
+		}
+		initNode( nodes , 0 , (byte) 0 );
+		this.nodeCount = 1; // root node
+	}
+
+	@Override
+	public void close() {
+		this.nodes = null;
+	}
+}
@@ -1,9 +1,10 @@
 package de.codesourcery.lzw;
 
 
-public class PrefixTree {
+public class PrefixTree implements IPrefixTree {
 
-	private static final int INITIAL_CHILD_ARRAY_SIZE = 300;
+	// most nodes have only a few children, lists grow as needed and are kept across clear()
+	private static final int INITIAL_CHILD_ARRAY_SIZE = 4;
 
 	private static final int BINARY_SEARCH_CUTOFF = 40;
 
@@ -18,7 +19,14 @@ public class PrefixTree {
 
 	public static void main(String[] args) {
 
-		final PrefixTree tree = new PrefixTree(1024);
+		test( new PrefixTree(1024) );
+		try ( OffHeapPrefixTree tree = new OffHeapPrefixTree(2) ) {
+			test( tree );
+		}
+		System.out.println("All tests passed");
+	}
+
+	private static void test(IPrefixTree tree) {
 
 		final byte[] data1 = { 1 , 2 , 3 };
 		final byte[] data2 = { 1 , 3 , 4 };
@@ -55,7 +63,12 @@ public class PrefixTree {
 		if ( value != -1 ) {
 			throw new IllegalArgumentException("Expected -1 but got "+value);
 		}
-		System.out.println("All tests passed");
+
+		tree.clear();
+		value = tree.lookup( data1 ,  data1.length );
+		if ( value != -1 ) {
+			throw new IllegalArgumentException("Expected -1 after clear() but got "+value);
+		}
 	}
 
 	public PrefixTree(int nodeCount)
@@ -67,8 +80,9 @@ public class PrefixTree {
 		{
 			suffixes[i] = 0;
 			values[i] = -1;
-			children[i] = new FastIntList(INITIAL_CHILD_ARRAY_SIZE);
 		}
+		// child lists of all other nodes are created when the node is first allocated
+		children[0] = new FastIntList(INITIAL_CHILD_ARRAY_SIZE);
 		this.maxNodeCount = nodeCount;
 		this.nodeCount = 1; // root node occupies first slot
 	}
@@ -90,7 +104,6 @@ public class PrefixTree {
 		{
 			suffixes[i] = 0;
 			values[i] = -1;
-			children[i] = new FastIntList(INITIAL_CHILD_ARRAY_SIZE);
 		}
 
 		this.suffixes = suffixes;
@@ -105,13 +118,18 @@ public class PrefixTree {
 		if ( result >= maxNodeCount ) {
 			resize();
 		}
+		if ( children[result] == null ) {
+			children[result] = new FastIntList(INITIAL_CHILD_ARRAY_SIZE);
+		}
 		return result;
 	}
 
+	@Override
 	public void put(byte[] pattern,int nodeValue) {
 		put(pattern,pattern.length , nodeValue );
 	}
 
+	@Override
 	public void put(byte[] pattern,int len, int nodeValue)
 	{
 		if ( USE_BINARY_SEARCH) {
@@ -249,10 +267,12 @@ public class PrefixTree {
 		return -1;
 	}
 
+	@Override
 	public int lookup(byte[] pattern) {
 		return lookup(pattern,pattern.length);
 	}
 
+	@Override
 	public int lookup(byte[] pattern,int len)
 	{
 		int offset = 0;
@@ -279,6 +299,7 @@ public class PrefixTree {
 		return values[currentNode];
 	}
 
+	@Override
 	public void clear()
 	{
 		for ( int i = 0 ; i < nodeCount ; i++ )
@@ -0,0 +1,133 @@
+package de.codesourcery.lzw;
+
+import java.util.Arrays;
+
+/**
+ * Side index recording where {@link LZWCompressor} reset its dictionary.
+ *
+ * Each reset point splits the code stream into segments that can be decoded
+ * independently. Since the code word emitted right at a reset still refers to the
+ * old dictionary, its string is stored alongside (the 'seed') so a decoder starting at
+ * the reset point never needs to look at preceding segments.
+ *
+ * @see LZWCompressor#compress(byte[], BitStream, ResetIndex)
+ * @see LZWCompressor#decompress(BitStream, ResetIndex, java.util.concurrent.ForkJoinPool)
+ */
+public final class ResetIndex
+{
+	private int size;
+
+	private int[] codeIndices = new int[16];
+	private long[] bitOffsets = new long[16];
+	private int[] outputOffsets = new int[16];
+
+	private int[] seedOffsets = new int[17];
+	private byte[] seeds = new byte[256];
+
+	private long startBitOffset;
+	private int numberOfCodeWords;
+	private int uncompressedLength;
+
+	void start(long startBitOffset)
+	{
+		this.size = 0;
+		this.startBitOffset = startBitOffset;
+		this.numberOfCodeWords = 0;
+		this.uncompressedLength = 0;
+	}
+
+	void add(int codeIndex,long bitOffset,int outputOffset,byte[] seed,int seedLength)
+	{
+		if ( size == codeIndices.length )
+		{
+			final int newSize = size * 2;
+			codeIndices = Arrays.copyOf( codeIndices , newSize );
+			bitOffsets = Arrays.copyOf( bitOffsets , newSize );
+			outputOffsets = Arrays.copyOf( outputOffsets , newSize );
+			seedOffsets = Arrays.copyOf( seedOffsets , newSize+1 );
+		}
+
+		final int seedOffset = seedOffsets[size];
+		if ( seedOffset + seedLength > seeds.length ) {
+			seeds = Arrays.copyOf( seeds , Math.max( seeds.length * 2 , seedOffset + seedLength ) );
+		}
+		System.arraycopy( seed , 0 , seeds , seedOffset , seedLength );
+
+		codeIndices[size] = codeIndex;
+		bitOffsets[size] = bitOffset;
+		outputOffsets[size] = outputOffset;
+		seedOffsets[size+1] = seedOffset + seedLength;
+		size++;
+	}
+
+	void finish(int numberOfCodeWords,int uncompressedLength)
+	{
+		this.numberOfCodeWords = numberOfCodeWords;
+		this.uncompressedLength = uncompressedLength;
+	}
+
+	/**
+	 * @return number of reset points
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param resetPoint
+	 * @return index of the code word emitted at the reset, it still refers to the old dictionary so its string is stored as seed
+	 */
+	public int getCodeIndex(int resetPoint) {
+		return codeIndices[resetPoint];
+	}
+
+	/**
+	 * @param resetPoint
+	 * @return bit offset of {@link #getCodeIndex(int)} in the compressed stream
+	 */
+	public long getBitOffset(int resetPoint) {
+		return bitOffsets[resetPoint];
+	}
+
+	/**
+	 * @param resetPoint
+	 * @return offset of the seed in the uncompressed data
+	 */
+	public int getOutputOffset(int resetPoint) {
+		return outputOffsets[resetPoint];
+	}
+
+	public int getSeedLength(int resetPoint) {
+		return seedOffsets[resetPoint+1] - seedOffsets[resetPoint];
+	}
+
+	/**
+	 * Copies the seed of a reset point.
+	 *
+	 * @param resetPoint
+	 * @param out
+	 * @param offset
+	 * @return seed length
+	 */
+	public int copySeed(int resetPoint,byte[] out,int offset)
+	{
+		final int length = getSeedLength( resetPoint );
+		System.arraycopy( seeds , seedOffsets[resetPoint] , out , offset , length );
+		return length;
+	}
+
+	/**
+	 * @return bit offset of the first code word in the compressed stream
+	 */
+	public long getStartBitOffset() {
+		return startBitOffset;
+	}
+
+	public int getNumberOfCodeWords() {
+		return numberOfCodeWords;
+	}
+
+	public int getUncompressedLength() {
+		return uncompressedLength;
+	}
+}
@@ -0,0 +1,711 @@
+package de.codesourcery.lzw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Randomized round-trip checks for {@link BitStream}, {@link LZWCompressor} and the classes built on it.
+ *
+ * Usage: <code>RoundTripFuzzer [iterations] [seed] [corpus directory]</code>
+ *
+ * Every file in the corpus directory is replayed as compressor input (and as
+ * serialized {@link BitStream}) before any random inputs are tried. Random inputs that
+ * fail are written to the corpus directory so they get re-checked on every subsequent run.
+ *
+ * The corpus checked in at the project root is used by default, it holds inputs for bugs fixed
+ * in the past.
+ */
+public class RoundTripFuzzer
+{
+	private static final int DEFAULT_ITERATIONS = 2000;
+
+	private static final String DEFAULT_CORPUS_DIR = "corpus";
+
+	private static final int MAX_INPUT_SIZE = 256*1024;
+
+	private final Random rnd;
+	private final File corpusDir;
+
+	private final LZWCompressor heapCompressor = new LZWCompressor(false);
+	private final LZWCompressor offHeapCompressor = new LZWCompressor(true);
+
+	// smallest and largest code word widths
+	private final LZWCompressor narrowCompressor = new LZWCompressor(false,LZWCompressor.MIN_BITS_PER_CODE_WORD);
+	private final LZWCompressor wideCompressor = new LZWCompressor(true,LZWCompressor.MAX_BITS_PER_CODE_WORD);
+
+	private final CachingCompressor cachingCompressor = new CachingCompressor( new LZWCompressor() , 1024*1024 );
+
+	private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	public RoundTripFuzzer(long seed,File corpusDir)
+	{
+		this.rnd = new Random(seed);
+		this.corpusDir = corpusDir;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_ITERATIONS;
+		final long seed = args.length > 1 ? Long.parseLong( args[1] ) : System.currentTimeMillis();
+		final File corpusDir = args.length > 2 ? new File( args[2] ) : defaultCorpusDir();
+
+		System.out.println("Seed: "+seed);
+
+		final RoundTripFuzzer fuzzer = new RoundTripFuzzer( seed , corpusDir );
+		try
+		{
+			fuzzer.replayCorpus();
+			fuzzer.checkBoundaries();
+			fuzzer.checkCacheCollision();
+			checkFrameLimits();
+			for ( int i = 0 ; i < iterations ; i++ )
+			{
+				fuzzer.fuzzBitStream();
+				fuzzer.fuzzCompressor();
+			}
+		}
+		finally {
+			fuzzer.heapCompressor.close();
+			fuzzer.offHeapCompressor.close();
+			fuzzer.narrowCompressor.close();
+			fuzzer.wideCompressor.close();
+		}
+		System.out.println("All tests passed");
+	}
+
+	/**
+	 * Looks for the corpus directory in the working directory, the location the classes were
+	 * loaded from and their parent directories.
+	 */
+	private static File defaultCorpusDir()
+	{
+		final List<File> startDirs = new ArrayList<>();
+		startDirs.add( new File( "." ).getAbsoluteFile() );
+		try {
+			startDirs.add( new File( RoundTripFuzzer.class.getProtectionDomain().getCodeSource().getLocation().toURI() ) );
+		} catch(URISyntaxException | RuntimeException e) {
+			// not loaded from the file system
+		}
+
+		for ( File dir : startDirs )
+		{
+			for ( ; dir != null ; dir = dir.getParentFile() )
+			{
+				final File candidate = new File( dir , DEFAULT_CORPUS_DIR );
+				if ( candidate.isDirectory() ) {
+					return candidate;
+				}
+			}
+		}
+		return new File( DEFAULT_CORPUS_DIR );
+	}
+
+	private void replayCorpus() throws IOException
+	{
+		final File[] files = corpusDir.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		Arrays.sort( files );
+		for ( File file : files )
+		{
+			if ( file.isFile() ) {
+				System.out.println("Replaying "+file);
+				final byte[] input = Files.readAllBytes( file.toPath() );
+				checkSerialization( input );
+				checkCompressor( input , false );
+			}
+		}
+	}
+
+	private void checkBoundaries() throws IOException
+	{
+		checkCompressor( new byte[0] , true );
+
+		final byte[] allBytes = new byte[256];
+		for ( int i = 0 ; i < 256 ; i++ ) {
+			allBytes[i] = (byte) i;
+		}
+		checkCompressor( allBytes , true );
+
+		// inputs ending right around 64-bit word boundaries of the output
+		for ( int len = 1 ; len <= 80 ; len++ ) {
+			checkCompressor( randomInput( len ) , true );
+		}
+	}
+
+	/**
+	 * Round-trips data through {@link BitStream#BitStream(byte[], int)} and {@link BitStream#getBytes()}
+	 * with every bit count that ends in the last byte.
+	 */
+	private static void checkSerialization(byte[] data)
+	{
+		final int maxBits = data.length * 8;
+		for ( int bits = Math.max( 0 , maxBits - 7 ) ; bits <= maxBits ; bits++ )
+		{
+			final byte[] expected = Arrays.copyOf( data , ( bits + 7 ) / 8 );
+			if ( ( bits & 7 ) != 0 ) {
+				expected[ expected.length-1 ] &= (byte) ( 0xff << ( 8 - ( bits & 7 ) ) );
+			}
+			final BitStream stream = new BitStream( data , bits );
+			if ( stream.getSizeInBits() != bits ) {
+				throw new RuntimeException("[serialization] Expected "+bits+" bits but got "+stream.getSizeInBits());
+			}
+			assertEquals( "serialization, "+bits+" bits" , expected , stream.getBytes() );
+		}
+	}
+
+	private void fuzzBitStream()
+	{
+		final BitStream stream = new BitStream( 1 + rnd.nextInt( 16 ) );
+
+		final int operations = rnd.nextInt( 20 );
+		final int[][] written = new int[ operations ][];
+		final int[] widths = new int[ operations ];
+
+		for ( int op = 0 ; op < operations ; op++ )
+		{
+			final int width = 1 + rnd.nextInt( 32 );
+			final int[] values = new int[ rnd.nextInt( 40 ) ];
+			for ( int i = 0 ; i < values.length ; i++ ) {
+				values[i] = (int) ( rnd.nextLong() & ( (1L << width)-1 ) );
+			}
+			switch( rnd.nextInt( 3 ) )
+			{
+				case 0:
+					stream.writeCodes( values , values.length , width );
+					break;
+				case 1:
+					for ( int value : values ) {
+						stream.write( value & 0xffffffffL , width );
+					}
+					break;
+				default:
+					final BitStream tmp = new BitStream( 1 );
+					tmp.writeCodes( values , values.length , width );
+					stream.write( tmp.toLongArray() , tmp.getSizeInBits() );
+			}
+			written[op] = values;
+			widths[op] = width;
+		}
+
+		// re-create from serialized form and append a marker
+		final int sizeInBits = stream.getSizeInBits();
+		final BitStream copy = new BitStream( stream.getBytes() , sizeInBits );
+		copy.write( 0b101 , 3 );
+
+		stream.reset();
+		long bitOffset = 0;
+		for ( int op = 0 ; op < operations ; op++ )
+		{
+			final int[] expected = written[op];
+			final int width = widths[op];
+
+			final int[] actual = new int[ expected.length ];
+			final int[] actualCopy = new int[ expected.length ];
+			switch( rnd.nextInt( 3 ) )
+			{
+				case 0:
+					for ( int i = 0 ; i < actual.length ; i++ ) {
+						actual[i] = stream.readInt( width );
+					}
+					break;
+				case 1:
+					stream.readCodes( actual , actual.length , width );
+					break;
+				default:
+					stream.readCodes( bitOffset , actual , 0 , actual.length , width );
+					for ( int i = 0 ; i < actual.length ; i++ ) {
+						stream.readInt( width );
+					}
+			}
+			bitOffset = copy.readCodes( bitOffset , actualCopy , 0 , actualCopy.length , width );
+
+			if ( ! Arrays.equals( expected , actual ) || ! Arrays.equals( expected , actualCopy ) ) {
+				throw new RuntimeException("BitStream mismatch in operation "+op+" ("+expected.length+" x "+width+" bits)");
+			}
+		}
+		final int[] marker = new int[1];
+		if ( copy.readCodes( bitOffset , marker , 0 , 1 , 3 ) != sizeInBits + 3 || copy.getSizeInBits() != sizeInBits + 3 ) {
+			throw new RuntimeException("BitStream size mismatch");
+		}
+		if ( marker[0] != 0b101 ) {
+			throw new RuntimeException("BitStream append mismatch, got "+marker[0]);
+		}
+
+		// reading past the end must fail instead of making up values
+		final int bitsLeft = rnd.nextInt( Math.min( 32 , sizeInBits + 1 ) );
+		final int width = bitsLeft + 1 + rnd.nextInt( 32 - bitsLeft );
+		boolean failed = false;
+		try {
+			stream.readCodes( sizeInBits - bitsLeft , marker , 0 , 1 , width );
+		} catch(IllegalArgumentException e) {
+			failed = true;
+		}
+		if ( ! failed ) {
+			throw new RuntimeException("BitStream#readCodes() read past the end of the stream");
+		}
+
+		// reuse for writing
+		stream.clear();
+		stream.write( 0x5a , 8 );
+		stream.reset();
+		if ( stream.readInt( 8 ) != 0x5a ) {
+			throw new RuntimeException("BitStream#clear() did not discard previous contents");
+		}
+	}
+
+	private void fuzzCompressor() throws IOException
+	{
+		checkCompressor( randomInput( rnd.nextInt( MAX_INPUT_SIZE ) ) , true );
+	}
+
+	private byte[] randomInput(int length)
+	{
+		final byte[] result = new byte[ length ];
+		final int alphabetSize = 1 + rnd.nextInt( 256 );
+		switch( rnd.nextInt( 4 ) )
+		{
+			case 0: // uniform
+				for ( int i = 0 ; i < length ; i++ ) {
+					result[i] = (byte) rnd.nextInt( alphabetSize );
+				}
+				break;
+			case 1: // runs
+				for ( int i = 0 ; i < length ; )
+				{
+					final byte value = (byte) rnd.nextInt( alphabetSize );
+					final int end = Math.min( length , i + 1 + rnd.nextInt( 100 ) );
+					while ( i < end ) {
+						result[i++] = value;
+					}
+				}
+				break;
+			case 2: // repeated phrases
+				final byte[][] phrases = new byte[ 1 + rnd.nextInt( 16 ) ][];
+				for ( int i = 0 ; i < phrases.length ; i++ )
+				{
+					phrases[i] = new byte[ 1 + rnd.nextInt( 20 ) ];
+					for ( int j = 0 ; j < phrases[i].length ; j++ ) {
+						phrases[i][j] = (byte) rnd.nextInt( alphabetSize );
+					}
+				}
+				for ( int i = 0 ; i < length ; )
+				{
+					final byte[] phrase = phrases[ rnd.nextInt( phrases.length ) ];
+					for ( int j = 0 ; j < phrase.length && i < length ; j++ ) {
+						result[i++] = phrase[j];
+					}
+				}
+				break;
+			default:
+				rnd.nextBytes( result );
+		}
+		return result;
+	}
+
+	private void checkCompressor(byte[] input,boolean saveOnFailure) throws IOException
+	{
+		try
+		{
+			check( input , heapCompressor );
+			check( input , offHeapCompressor );
+			check( input , narrowCompressor );
+			check( input , wideCompressor );
+			checkCached( input );
+			checkChannels( input );
+			checkAsyncChannel( input );
+			checkSession( input );
+		}
+		catch(RuntimeException | IOException e)
+		{
+			if ( saveOnFailure ) {
+				saveToCorpus( input );
+			}
+			throw e;
+		}
+	}
+
+	private void check(byte[] input,LZWCompressor compressor)
+	{
+		// start at a random bit offset so reset index offsets get exercised
+		final BitStream out = new BitStream( 1 + rnd.nextInt( 64 ) );
+		final int padding = rnd.nextInt( 64 );
+		if ( padding > 0 ) {
+			out.write( 0 , padding );
+		}
+
+		final ResetIndex resetIndex = new ResetIndex();
+		final int codeWords = compressor.compress( input , out , resetIndex );
+
+		assertEquals( "parallel" , input , compressor.decompress( out , resetIndex , pool ) );
+
+		// serialized form, skipping the padding
+		final BitStream copy = new BitStream( out.getBytes() , out.getSizeInBits() );
+		if ( padding > 0 ) {
+			copy.readLong( padding );
+		}
+		assertEquals( "sequential" , input , compressor.decompress( copy , codeWords ) );
+
+		checkEstimate( input , compressor , codeWords );
+	}
+
+	private void checkEstimate(byte[] input,LZWCompressor compressor,int codeWords)
+	{
+		// inputs that fit into the budget are measured exactly
+		final int budget = Math.max( 1 , rnd.nextBoolean() ? input.length : input.length + 1 + rnd.nextInt( 1024 ) );
+		final float expectedRatio = input.length == 0 ? 1f : (float) ( codeWords * compressor.getBitsPerCodeWord() / ( input.length * 8d ) );
+
+		final int padding = rnd.nextInt( 16 );
+		final ByteBuffer direct = ByteBuffer.allocateDirect( padding + input.length );
+		direct.position( padding );
+		direct.put( input );
+		direct.position( padding );
+
+		final LZWCompressor.Estimate[] exact = { compressor.estimateRatio( input , budget ) , compressor.estimateRatio( direct , budget ) };
+		for ( LZWCompressor.Estimate estimate : exact )
+		{
+			if ( estimate.ratio != expectedRatio || estimate.confidence != 1f || estimate.bytesSampled != input.length ) {
+				throw new RuntimeException("[estimate] Expected exact ratio "+expectedRatio+" for "+input.length+" bytes but got "+estimate.ratio+
+						" (confidence "+estimate.confidence+", "+estimate.bytesSampled+" bytes sampled)");
+			}
+		}
+		if ( direct.position() != padding ) {
+			throw new RuntimeException("[estimate] Buffer position changed");
+		}
+
+		if ( input.length > 1 )
+		{
+			final int sampleBudget = 1 + rnd.nextInt( input.length - 1 );
+			final LZWCompressor.Estimate estimate = compressor.estimateRatio( input , sampleBudget );
+			if ( ! ( estimate.confidence >= 0 && estimate.confidence <= 1 ) || estimate.bytesSampled < 1 || estimate.bytesSampled > sampleBudget || ! ( estimate.ratio > 0 ) ) {
+				throw new RuntimeException("[estimate] Invalid estimate for "+input.length+" bytes with budget "+sampleBudget+": ratio "+estimate.ratio+
+						", confidence "+estimate.confidence+", "+estimate.bytesSampled+" bytes sampled");
+			}
+		}
+	}
+
+	private void checkCached(byte[] input)
+	{
+		// second round should be served from the cache
+		for ( int round = 0 ; round < 2 ; round++ )
+		{
+			final BitStream out = new BitStream( 1 + rnd.nextInt( 64 ) );
+			final int padding = rnd.nextInt( 64 );
+			if ( padding > 0 ) {
+				out.write( 0 , padding );
+			}
+			final int codeWords = cachingCompressor.compress( input , out );
+
+			out.reset();
+			if ( padding > 0 ) {
+				out.readLong( padding );
+			}
+			assertEquals( "cached, round "+round , input , cachingCompressor.decompress( out , codeWords ) );
+		}
+	}
+
+	/**
+	 * Crafts two different 16-byte inputs with equal {@link CachingCompressor} keys and checks
+	 * that the second one is not served the first one's data.
+	 *
+	 * The first block of the second input swaps the states of both seeds, the second block
+	 * cancels out the difference.
+	 */
+	private void checkCacheCollision()
+	{
+		final long a1 = rnd.nextLong();
+		final long a2 = rnd.nextLong();
+		final long h1 = CachingCompressor.SEED1 + CachingCompressor.PRIME5 + 16;
+		final long h2 = CachingCompressor.SEED2 + CachingCompressor.PRIME5 + 16;
+
+		final long b1 = unmixBlock( mixBlock( a1 ) ^ h1 ^ h2 );
+		final long s1 = mixState( h1 ^ mixBlock( a1 ) );
+		final long s2 = mixState( h2 ^ mixBlock( a1 ) );
+		final long b2 = unmixBlock( mixBlock( a2 ) ^ s1 ^ s2 );
+
+		final byte[] first = ByteBuffer.allocate( 16 ).order( ByteOrder.LITTLE_ENDIAN ).putLong( a1 ).putLong( a2 ).array();
+		final byte[] second = ByteBuffer.allocate( 16 ).order( ByteOrder.LITTLE_ENDIAN ).putLong( b1 ).putLong( b2 ).array();
+		if ( CachingCompressor.hash( first , CachingCompressor.SEED1 ) != CachingCompressor.hash( second , CachingCompressor.SEED1 ) ||
+			 CachingCompressor.hash( first , CachingCompressor.SEED2 ) != CachingCompressor.hash( second , CachingCompressor.SEED2 ) )
+		{
+			throw new RuntimeException("Crafted inputs do not collide, update checkCacheCollision() to match CachingCompressor#hash()");
+		}
+
+		final long collisions = cachingCompressor.getCollisionCount();
+		checkCached( first );
+		checkCached( second );
+		if ( cachingCompressor.getCollisionCount() == collisions ) {
+			throw new RuntimeException("Colliding inputs were not detected by the cache");
+		}
+	}
+
+	private static long mixBlock(long k) {
+		return Long.rotateLeft( k * CachingCompressor.PRIME2 , 31 ) * CachingCompressor.PRIME1;
+	}
+
+	private static long unmixBlock(long k) {
+		return Long.rotateRight( k * inverse( CachingCompressor.PRIME1 ) , 31 ) * inverse( CachingCompressor.PRIME2 );
+	}
+
+	private static long mixState(long hash) {
+		return Long.rotateLeft( hash , 27 ) * CachingCompressor.PRIME1 + CachingCompressor.PRIME4;
+	}
+
+	// multiplicative inverse of an odd number modulo 2^64 (Newton iteration)
+	private static long inverse(long odd)
+	{
+		long result = odd;
+		for ( int i = 0 ; i < 5 ; i++ ) {
+			result *= 2 - odd * result;
+		}
+		return result;
+	}
+
+	/**
+	 * Frame headers claiming huge (or overflowing) sizes must be rejected before anything gets allocated.
+	 */
+	private static void checkFrameLimits()
+	{
+		final int[][] headers = {
+				{ 0x08000000 , 0x08000000 , 16 } ,
+				{ 0x40000000 , 0x40000000 , 16 } ,
+				{ 0x7ffffff0 , 0x7ffffff0 , 16 } ,
+				{ Integer.MAX_VALUE , Integer.MAX_VALUE , 16 } ,
+				{ LZWFrame.MAX_FRAME_LENGTH , LZWFrame.MAX_FRAME_LENGTH , 16 } ,
+				{ LZWFrame.DEFAULT_MAX_FRAME_LENGTH + 1 , 1 , 12 } };
+
+		for ( int[] header : headers )
+		{
+			final ByteBuffer frame = ByteBuffer.allocate( LZWFrame.HEADER_SIZE );
+			frame.putInt( header[0] ).putInt( header[1] ).put( (byte) header[2] ).flip();
+			final String name = "frame limit, header "+Arrays.toString( header );
+
+			expectIOException( name+", channel" , () ->
+			{
+				try ( LZWReadableChannel in = new LZWReadableChannel( Channels.newChannel( new ByteArrayInputStream( frame.array() ) ) , new LZWCompressor( false , header[2] ) ) ) {
+					in.read( ByteBuffer.allocate( 1 ) );
+				}
+			});
+			expectIOException( name+", session" , () -> new LZWSessionDecoder().decompress( frame.duplicate() ) );
+			// limit large enough to let the header pass, size calculations must not overflow
+			expectIOException( name+", maximum limit" , () ->
+			{
+				final int payloadSize = LZWFrame.payloadSize( frame , header[2] , LZWFrame.MAX_FRAME_LENGTH );
+				if ( payloadSize < 0 ) {
+					throw new RuntimeException("["+name+"] Negative payload size "+payloadSize);
+				}
+				LZWFrame.decode( new LZWCompressor( false , header[2] ) , frame , ByteBuffer.allocate( 0 ) );
+			});
+		}
+	}
+
+	@FunctionalInterface
+	private interface IOAction
+	{
+		void run() throws IOException;
+	}
+
+	private static void expectIOException(String mode,IOAction action)
+	{
+		try {
+			action.run();
+		} catch(IOException e) {
+			return;
+		}
+		throw new RuntimeException("["+mode+"] Expected an IOException");
+	}
+
+	private void checkChannels(byte[] input) throws IOException
+	{
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try ( LZWWritableChannel out = new LZWWritableChannel( Channels.newChannel( compressed ) , heapCompressor , 1 + rnd.nextInt( 64*1024 ) ) ) {
+			out.write( ByteBuffer.wrap( input ) );
+		}
+
+		final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+		try ( LZWReadableChannel in = new LZWReadableChannel( Channels.newChannel( new ByteArrayInputStream( compressed.toByteArray() ) ) , offHeapCompressor ) )
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate( 1 + rnd.nextInt( 8192 ) );
+			while ( in.read( buffer ) != -1 )
+			{
+				decompressed.write( buffer.array() , 0 , buffer.position() );
+				buffer.clear();
+			}
+		}
+		assertEquals( "channels" , input , decompressed.toByteArray() );
+	}
+
+	/**
+	 * Writes random chunks with overlapping calls from several threads, then reads
+	 * the file back frame by frame.
+	 *
+	 * The order of the frames depends on thread scheduling, so the chunks read back are
+	 * compared to the chunks written regardless of order.
+	 */
+	private void checkAsyncChannel(byte[] input) throws IOException
+	{
+		final List<byte[]> chunks = new ArrayList<>();
+		for ( int offset = 0 ; offset < input.length || chunks.isEmpty() ; )
+		{
+			// mix in empty frames now and then
+			final int length = rnd.nextInt( 8 ) == 0 ? 0 : Math.min( input.length - offset , 1 + rnd.nextInt( 16*1024 ) );
+			chunks.add( Arrays.copyOfRange( input , offset , offset + length ) );
+			offset += length;
+		}
+
+		final File file = File.createTempFile( "fuzz" , ".lzw" );
+		try ( LZWAsynchronousFileChannel channel = new LZWAsynchronousFileChannel(
+				AsynchronousFileChannel.open( file.toPath() , StandardOpenOption.READ , StandardOpenOption.WRITE ) , offHeapCompressor , 0 ) )
+		{
+			final List<CompletableFuture<Integer>> writes = new ArrayList<>();
+			for ( byte[] chunk : chunks )
+			{
+				final CompletableFuture<Integer> future = new CompletableFuture<>();
+				writes.add( future );
+				pool.execute( () ->
+				{
+					try {
+						channel.write( ByteBuffer.wrap( chunk ) , future , completing() );
+					} catch(RuntimeException e) {
+						future.completeExceptionally( e );
+					}
+				});
+			}
+
+			final Map<ByteBuffer,Integer> expected = new HashMap<>();
+			for ( int i = 0 ; i < chunks.size() ; i++ )
+			{
+				final int written = await( writes.get(i) );
+				if ( written != chunks.get(i).length ) {
+					throw new RuntimeException("[async] Expected "+chunks.get(i).length+" bytes to be written but got "+written);
+				}
+				expected.merge( ByteBuffer.wrap( chunks.get(i) ) , 1 , Integer::sum );
+			}
+
+			long position = 0;
+			while ( true )
+			{
+				final CompletableFuture<LZWAsynchronousFileChannel.Block> future = new CompletableFuture<>();
+				channel.read( position , future , completing() );
+				final LZWAsynchronousFileChannel.Block block = await( future );
+				if ( block == null ) {
+					break;
+				}
+				final Integer count = expected.get( block.data );
+				if ( count == null ) {
+					throw new RuntimeException("[async] Frame at position "+position+" ("+block.data.remaining()+" bytes) does not match any chunk written");
+				}
+				if ( count == 1 ) {
+					expected.remove( block.data );
+				} else {
+					expected.put( block.data , count-1 );
+				}
+				position = block.nextPosition;
+			}
+			if ( position != channel.getWritePosition() ) {
+				throw new RuntimeException("[async] Read "+position+" bytes but "+channel.getWritePosition()+" were written");
+			}
+			if ( ! expected.isEmpty() ) {
+				throw new RuntimeException("[async] "+expected.size()+" chunk(s) not read back");
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static <T> CompletionHandler<T,CompletableFuture<T>> completing()
+	{
+		return new CompletionHandler<T,CompletableFuture<T>>()
+		{
+			@Override
+			public void completed(T result, CompletableFuture<T> future) {
+				future.complete( result );
+			}
+
+			@Override
+			public void failed(Throwable exc, CompletableFuture<T> future) {
+				future.completeExceptionally( exc );
+			}
+		};
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws IOException
+	{
+		try {
+			return future.get( 30 , TimeUnit.SECONDS );
+		}
+		catch(ExecutionException e)
+		{
+			if ( e.getCause() instanceof IOException ) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException("[async] "+e.getCause(),e.getCause());
+		}
+		catch(InterruptedException | TimeoutException e) {
+			throw new RuntimeException("[async] "+e,e);
+		}
+	}
+
+	private void checkSession(byte[] input) throws IOException
+	{
+		try ( LZWSessionEncoder encoder = new LZWSessionEncoder( rnd.nextBoolean() ) )
+		{
+			final LZWSessionDecoder decoder = new LZWSessionDecoder();
+			final int maxChunkSize = 1 + rnd.nextInt( 4096 );
+			for ( int offset = 0 ; offset < input.length ; )
+			{
+				// mix in empty messages now and then
+				final int length = rnd.nextInt( 8 ) == 0 ? 0 : Math.min( input.length - offset , 1 + rnd.nextInt( maxChunkSize ) );
+				final byte[] decompressed = decoder.decompress( encoder.compress( input , offset , length ) );
+				assertEquals( "session, offset "+offset , Arrays.copyOfRange( input , offset , offset + length ) , decompressed );
+				offset += length;
+			}
+		}
+	}
+
+	private static void assertEquals(String mode,byte[] expected,byte[] actual)
+	{
+		if ( expected.length != actual.length ) {
+			throw new RuntimeException("["+mode+"] Length mismatch, expected "+expected.length+" bytes but got "+actual.length);
+		}
+		for ( int i = 0 ; i < expected.length ; i++ )
+		{
+			if ( expected[i] != actual[i] ) {
+				throw new RuntimeException("["+mode+"] Mismatch at offset "+i+" , expected "+expected[i]+" but got "+actual[i]);
+			}
+		}
+	}
+
+	private void saveToCorpus(byte[] input) throws IOException
+	{
+		if ( ! corpusDir.exists() && ! corpusDir.mkdirs() ) {
+			throw new IOException("Failed to create corpus directory "+corpusDir.getAbsolutePath());
+		}
+		final File file = new File( corpusDir , "failure-"+Integer.toHexString( Arrays.hashCode( input ) )+".bin" );
+		Files.write( file.toPath() , input );
+		System.err.println("Failing input written to "+file.getAbsolutePath());
+	}
+}